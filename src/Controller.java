@@ -3,28 +3,125 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
 
 public class Controller {
-    final Map<String, ArrayList<Integer>> storingIndex = new TreeMap<>();
-    final Map<String, String> index = new TreeMap<>();
-    final Map<String, String> filesizes = new TreeMap<>();
-    final ArrayList<Socket> dstores = new ArrayList<>();
-
-    final Map<Integer, Socket> portToDStore = new TreeMap<>();
-
-    final boolean[] rebalanceInProgress = {false};
+    private static final int ACCEPT_BACKLOG = 4096;
+    private static final int CONNECTION_BUFFER = 512;
+    // the records of the metadata log: a stored file with its placement, checksums and stored size, a removed file,
+    // an object's new holders
+    private static final String FILE_RECORD = "FILE";
+    private static final String REMOVE_RECORD = "REMOVE";
+    private static final String PLACE_RECORD = "PLACE";
+    private static final String[] LIST_MESSAGE = {Protocol.LIST_TOKEN};
+    private static final String PREFIX_ARGUMENT = "prefix=";
+    private static final String AFTER_ARGUMENT = "after=";
+    private static final int MAX_PAGE = Integer.getInteger("controller.list.maxPage", 10_000);
+
+    final Map<String, List<Integer>> storingIndex = new ConcurrentSkipListMap<>();
+    // sorted, so LIST_PAGE can start anywhere in it
+    final NavigableMap<String, String> index = new ConcurrentSkipListMap<>();
+    // the size of each file as clients see it, however it is stored
+    final Map<String, String> filesizes = new ConcurrentSkipListMap<>();
+    // files stored compressed, mapped to their size as stored; storingIndex holds the compressed object instead of the file
+    final Map<String, Long> storedSizes = new ConcurrentSkipListMap<>();
+    // deduplicated files, mapped to their content object; storingIndex holds that object, which may be shared
+    final Map<String, String> contents = new ConcurrentSkipListMap<>();
+    // each content object, mapped to the files that refer to it, or to the one file uploading it while that is under
+    // way. Files start and stop sharing only while holding it, so none starts to share content whose last reference
+    // is going.
+    final Map<String, Set<String>> references = new ConcurrentHashMap<>();
+    // files stored as chunks, mapped to their chunk size; storingIndex holds the chunks instead of the file
+    final Map<String, Long> chunkSizes = new ConcurrentSkipListMap<>();
+    // erasure-coded files, mapped to their code; storingIndex holds one Dstore per shard instead of the file
+    final Map<String, ErasureCode> erasureCodes = new ConcurrentSkipListMap<>();
+    // the CRC32C of each object, as most of its Dstores acknowledged storing it
+    final Map<String, Long> checksums = new ConcurrentSkipListMap<>();
+
+    final Map<Integer, DstoreChannel> portToDStore = new ConcurrentSkipListMap<>();
+
+    // held by the one rebalance that may run at a time; clients are served throughout
+    private final AtomicBoolean rebalancing = new AtomicBoolean(false);
+    // set when a rebalance is asked for while one is running, which then runs another once it is done
+    private final AtomicBoolean rebalanceAgain = new AtomicBoolean(false);
     private final int cport;
     private final int R;
     private final int timeout;
     private final int rebalance;
-    private Map<Integer, Boolean> isDstore = new HashMap<>();
-    private final ArrayList<Socket> loadingDStores = new ArrayList<>();
+    private final ThreadFactory connectionThreads;
+    private final long chunkThreshold = Long.getLong("controller.chunk.threshold", 64L << 20);
+    private final long chunkSize = Long.getLong("controller.chunk.size", 16L << 20);
+    // the code STORE_EC uses when the client does not name one, written k+m
+    private final ErasureCode erasureCode = ErasureCode.parse(System.getProperty("controller.erasure", "4+2"));
+    private final ReplicaSelector replicas;
+    // each client's latest load of a plain file, until it sends something other than a RELOAD of it
+    private final Map<Socket, LoadAttempt> attempts = new ConcurrentHashMap<>();
+    // every this many rebalances each Dstore lists everything it holds instead of what changed since the last one
+    private final int fullListEvery = Integer.getInteger("controller.inventory.fullEvery", 10);
+    private int rebalances = 0;
+    private final DstoreLoads loads;
     private FileOutputStream logWriter;
+    // the write-ahead log of the maps above, or null if controller.metadata is unset and they live in memory only
+    private MetadataStore metadata;
+
+    /**
+     * A client's load of one file: the Dstores it has been sent to so far, and the load still under way and the hedge
+     * racing it, if any.
+     */
+    private static final class LoadAttempt {
+        final String filename;
+        // true if the client takes a compressed file's bytes as stored and inflates them itself
+        final boolean compressed;
+        final List<Integer> tried = new ArrayList<>();
+        ReplicaSelector.Load current;
+        ReplicaSelector.Load hedge;
+
+        LoadAttempt(String filename, boolean compressed) {
+            this.filename = filename;
+            this.compressed = compressed;
+        }
+
+        void finish(ReplicaSelector replicas, boolean failed) {
+            if (current != null) {
+                // whichever won, the first replica was too slow to start
+                replicas.finish(current, failed || hedge != null);
+            }
+            if (hedge != null) {
+                replicas.finish(hedge, failed);
+            }
+            current = null;
+            hedge = null;
+        }
+    }
+
+    /**
+     * k data shards and m parity shards; any k of them rebuild the file.
+     */
+    record ErasureCode(int k, int m) {
+        ErasureCode {
+            if (k < 1 || m < 0 || k + m > 256) {
+                throw new IllegalArgumentException("Unsupported erasure code " + k + "+" + m);
+            }
+        }
+
+        static ErasureCode parse(String code) {
+            String[] parts = code.split("\\+");
+            return new ErasureCode(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        }
+    }
 
     public Controller(int cport, int r, int timeout, int rebalance) throws UnknownHostException {
         System.out.println("Starting Controller");
@@ -32,6 +129,26 @@ public class Controller {
         this.R = r;
         this.timeout = timeout;
         this.rebalance = rebalance;
+        // "virtual" (default) parks one cheap thread per connection, "platform" keeps the old OS thread per connection
+        String mode = System.getProperty("controller.connections", "virtual");
+        switch (mode) {
+            case "virtual" -> connectionThreads = Thread.ofVirtual().name("connection-", 0).factory();
+            case "platform" -> connectionThreads = Thread.ofPlatform().name("connection-", 0).factory();
+            default -> throw new IllegalArgumentException("Unknown connection mode: " + mode);
+        }
+        System.out.println("Handling connections with " + mode + " threads");
+        // "files" (default) places new files on the Dstores holding the fewest objects, "bytes" on those holding the least data
+        String placement = System.getProperty("controller.placement", "files");
+        switch (placement) {
+            case "files" -> loads = new DstoreLoads(false);
+            case "bytes" -> loads = new DstoreLoads(true);
+            default -> throw new IllegalArgumentException("Unknown placement mode: " + placement);
+        }
+        // "p2c" (default) loads from the better of two random replicas, "least" from the best of all, "first" always from the first
+        // HEDGEs allowed per load, and the most that can be saved up for a burst of slow loads
+        replicas = new ReplicaSelector(System.getProperty("controller.replicaSelection", "p2c"), timeout,
+                Double.parseDouble(System.getProperty("controller.hedge.ratio", "0.05")),
+                Double.parseDouble(System.getProperty("controller.hedge.burst", "10")));
     }
 
     private boolean isntInteger(String num) {
@@ -43,19 +160,83 @@ public class Controller {
         }
     }
 
+    private boolean isntLong(String num) {
+        try {
+            Long.parseLong(num);
+            return false;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
     private boolean malformed(String action, String[] message) {
         switch (action) {
             case Protocol.JOIN_TOKEN -> {
-                return (message.length != 2 || isntInteger(message[1]));
+                if (message.length < 2 || (message.length - 2) % 3 != 0 || isntInteger(message[1])) {
+                    return true;
+                }
+                for (int i = 3; i < message.length; i += 3) {
+                    if (isntLong(message[i]) || isntLong(message[i + 1])) {
+                        return true;
+                    }
+                }
+                return false;
             }
-            case Protocol.LOAD_TOKEN, Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN -> {
+            case Protocol.LOAD_TOKEN, Protocol.LOAD_CHUNKED_TOKEN, Protocol.LOAD_EC_TOKEN, Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN,
+                 Protocol.HEDGE_TOKEN, Protocol.LOAD_COMPRESSED_TOKEN, Protocol.LOAD_DEDUP_TOKEN -> {
                 return (message.length != 2);
             }
+            case Protocol.LOAD_RANGE_TOKEN -> {
+                return (message.length != 4 || isntLong(message[2]) || isntLong(message[3]));
+            }
             case Protocol.LIST_TOKEN -> {
                 return (!Objects.equals(message[0], Protocol.LIST_TOKEN));
             }
-            case Protocol.STORE_TOKEN -> {
-                return (message.length != 3 || isntInteger(message[2]));
+            case Protocol.LIST_PAGE_TOKEN -> {
+                if (message.length < 2 || message.length > 4 || isntInteger(message[1]) || Integer.parseInt(message[1]) < 1) {
+                    return true;
+                }
+                for (int i = 2; i < message.length; i++) {
+                    if (!message[i].startsWith(PREFIX_ARGUMENT) && !message[i].startsWith(AFTER_ARGUMENT)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case Protocol.STORE_TOKEN, Protocol.STORE_CHAIN_TOKEN, Protocol.STORE_CHUNKED_TOKEN -> {
+                return (message.length != 3 || isntLong(message[2]) || reservedName(message[1]));
+            }
+            case Protocol.STORE_COMPRESSED_TOKEN -> {
+                return (message.length != 4 || isntLong(message[2]) || isntLong(message[3]) || reservedName(message[1]));
+            }
+            case Protocol.STORE_DEDUP_TOKEN -> {
+                return (message.length != 4 || isntLong(message[2]) || !message[3].matches("[0-9a-f]{64}") || reservedName(message[1]));
+            }
+            case Protocol.STORE_BATCH_TOKEN -> {
+                if (message.length < 2 || isntInteger(message[1]) || Integer.parseInt(message[1]) < 1
+                        || message.length != 2 + 2 * Integer.parseInt(message[1])) {
+                    return true;
+                }
+                for (int i = 2; i < message.length; i += 2) {
+                    if (isntLong(message[i + 1]) || reservedName(message[i])) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            case Protocol.LOAD_BATCH_TOKEN, Protocol.REMOVE_BATCH_TOKEN -> {
+                return (message.length < 2 || isntInteger(message[1]) || Integer.parseInt(message[1]) < 1
+                        || message.length != 2 + Integer.parseInt(message[1]));
+            }
+            case Protocol.STORE_EC_TOKEN -> {
+                if (message.length == 5) {
+                    try {
+                        new ErasureCode(Integer.parseInt(message[3]), Integer.parseInt(message[4]));
+                    } catch (IllegalArgumentException e) {
+                        return true;
+                    }
+                }
+                return ((message.length != 3 && message.length != 5) || isntLong(message[2]) || reservedName(message[1]));
             }
 
             case null, default -> {
@@ -65,307 +246,720 @@ public class Controller {
     }
 
 
-    private Integer maxKey(Map<Integer, ArrayList<String>> allocations) {
-        int max = allocations.keySet().toArray(new Integer[0])[0];
-        for (Integer key : allocations.keySet()) {
-            if (allocations.get(key).size() > allocations.get(max).size()) {
-                max = key;
+    /**
+     * Names containing a separator, the compressed suffix or the content prefix would clash with the objects chunked,
+     * erasure-coded, compressed and deduplicated files are stored as, and a Dstore's internal names with its own files.
+     */
+    private static boolean reservedName(String filename) {
+        return filename.contains(Protocol.CHUNK_NAME_SEPARATOR) || filename.contains(Protocol.SHARD_NAME_SEPARATOR)
+                || filename.contains(Protocol.COMPRESSED_NAME_SUFFIX) || filename.contains(Protocol.CONTENT_NAME_PREFIX)
+                || Dstore.internalName(filename);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Controller controller = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        controller.run();
+    }
+
+
+    private void runRebalance() {
+        new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(rebalance);
+                    doRebalance();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
             }
-        }
-        return max;
+        }).start();
     }
 
-    private Integer minKey(Map<Integer, ArrayList<String>> allocations) {
-        int min = allocations.keySet().toArray(new Integer[0])[0];
-        for (Integer key : allocations.keySet()) {
-            if (allocations.get(key).size() > allocations.get(min).size()) {
-                min = key;
+    /**
+     * Rebalances while clients carry on. The index as it stands when the Dstores are asked to list is the epoch the
+     * plan starts from; LOADs keep being served from it while the copies are sent, since nothing is removed until the
+     * end. The planned loads are counted straight away so STOREs made meanwhile are placed as if the rebalance had
+     * already happened. Once every Dstore has confirmed its sends the new placement is switched in, object by object,
+     * wherever the index still holds what the plan started from, and only then are the dropped copies removed.
+     * A rebalance asked for while one is running, say because a Dstore reported a corrupt copy, runs once it is done.
+     */
+    private void doRebalance() {
+        new Thread(() -> {
+            if (portToDStore.size() < R) {
+                return;
             }
-        }
-        return min;
+            // set first, so a rebalance that is just finishing either sees it or has already let this one run
+            rebalanceAgain.set(true);
+            if (rebalancing.compareAndSet(false, true)) {
+                rebalanceAgain.set(false);
+                System.out.println("Starting Rebalance");
+                try {
+                    Map<String, List<Integer>> epoch = new HashMap<>(storingIndex);
+                    // each Dstore reports what changed since the version last seen, or everything on a full round
+                    boolean full = rebalances++ % fullListEvery == 0;
+                    List<DstoreChannel> dstores = new ArrayList<>(portToDStore.values());
+                    List<CompletableFuture<String>> lists = new ArrayList<>();
+                    for (DstoreChannel dstore : dstores) {
+                        lists.add(dstore.expect(Protocol.LIST_DELTA_TOKEN, ""));
+                        dstore.send(Protocol.LIST_DELTA_TOKEN + " " + (full ? -1 : dstore.inventoryVersion));
+                    }
+                    if (!awaitAll(lists)) {
+                        for (DstoreChannel dstore : dstores) {
+                            dstore.forget(Protocol.LIST_DELTA_TOKEN, "");
+                        }
+                        System.out.println("Rebalance Failed: not every Dstore listed its files");
+                        return;
+                    }
+                    Map<Integer, Set<String>> fileAllocation = new TreeMap<>();
+                    Map<Integer, Collection<String>> added = new TreeMap<>();
+                    for (int i = 0; i < dstores.size(); i++) {
+                        DstoreChannel dstore = dstores.get(i);
+                        added.put(dstore.port, dstore.applyInventory(lists.get(i).get()));
+                        fileAllocation.put(dstore.port, dstore.inventory);
+                        System.out.println("Dstore " + dstore.port + " holds " + dstore.inventory.size() + " files, "
+                                + added.get(dstore.port).size() + " new");
+                    }
+
+                    Set<String> damaged = new TreeSet<>();
+                    for (String object : epoch.keySet()) {
+                        // stored, removed or moved since the epoch began, so not something the listing can judge
+                        if (storingIndex.get(object) != epoch.get(object)) {
+                            continue;
+                        }
+                        boolean found = listedHolder(object, fileAllocation) != null;
+                        // after a Controller restart a holder may not have joined again yet
+                        if (!found && !portToDStore.keySet().containsAll(epoch.get(object))) {
+                            continue;
+                        }
+                        if (!found && erasureCodes.containsKey(ownerOf(object))) {
+                            damaged.add(ownerOf(object));
+                        } else if (!found) {
+                            System.out.println("Every replica of '" + object + "' is gone");
+                            for (String filename : ownersOf(object)) {
+                                dropFile(filename);
+                            }
+                        }
+                    }
+                    for (String filename : damaged) {
+                        rebuildShards(filename, fileAllocation);
+                    }
+
+                    // a file only becomes extra by appearing on a Dstore, so only new ones are checked, except on a
+                    // full round, which also catches any whose REMOVE was lost. Files of stores still in progress
+                    // are not in storingIndex yet and are left alone.
+                    Map<String, Integer> extras = new LinkedHashMap<>();
+                    Map<String, CompletableFuture<String>> removed = new LinkedHashMap<>();
+                    for (Integer port : fileAllocation.keySet()) {
+                        for (String file : full ? fileAllocation.get(port) : added.get(port)) {
+                            if (!storingIndex.containsKey(file) && !index.containsKey(ownerOf(file))) {
+                                String key = file + " " + port;
+                                extras.put(key, port);
+                                removed.put(key, expect(port, Protocol.REMOVE_ACK_TOKEN, file));
+                                send(port, Protocol.REMOVE_TOKEN + " " + file);
+                            }
+                        }
+                    }
+                    awaitAll(new ArrayList<>(removed.values()));
+                    for (String key : extras.keySet()) {
+                        Integer port = extras.get(key);
+                        String file = key.substring(0, key.lastIndexOf(' '));
+                        CompletableFuture<String> ack = removed.get(key);
+                        if (ack.isDone() && !ack.isCompletedExceptionally()) {
+                            fileAllocation.get(port).remove(file);
+                            System.out.println("Removed extra file '" + file + "' from Dstore " + port);
+                        } else {
+                            forget(port, Protocol.REMOVE_ACK_TOKEN, file);
+                        }
+                    }
+
+
+                    Map<String, Integer> copies = new HashMap<>();
+                    for (String object : epoch.keySet()) {
+                        if (storingIndex.containsKey(object)) {
+                            copies.put(object, erasureCodes.containsKey(ownerOf(object)) ? 1 : R);
+                        }
+                    }
+                    // the shards of one file are kept on different Dstores; every other object stands alone
+                    RebalancePlanner.Plan plan = new RebalancePlanner(copies,
+                            object -> object.contains(Protocol.SHARD_NAME_SEPARATOR) ? ownerOf(object) : object)
+                            .plan(fileAllocation);
+                    Map<String, List<Integer>> moved = new HashMap<>();
+                    for (Map.Entry<String, List<Integer>> placed : plan.placement().entrySet()) {
+                        List<Integer> before = storingIndex.get(placed.getKey());
+                        if (before != null && (before.size() != placed.getValue().size() || !before.containsAll(placed.getValue()))) {
+                            moved.put(placed.getKey(), before);
+                            loads.move(before, placed.getValue(), objectSize(placed.getKey()));
+                        }
+                    }
+                    Map<Integer, String> allocations = plan.commands(false);
+                    System.out.println("Rebalance moves " + plan.moves() + " copies");
+                    System.out.println("New File Allocations: " + allocations);
+                    List<CompletableFuture<String>> completions = new ArrayList<>();
+                    for (Integer portKey : allocations.keySet()) {
+                        completions.add(expect(portKey, Protocol.REBALANCE_COMPLETE_TOKEN, "")
+                                .thenApply(line -> {
+                                    System.out.println("Recieved REBALANCE_COMLPETE from Dstore " + portKey);
+                                    return line;
+                                }));
+                        send(portKey, allocations.get(portKey));
+                    }
+
+                    if (awaitAll(completions)) {
+                        int switched = 0;
+                        for (String object : moved.keySet()) {
+                            List<Integer> after = plan.placement().get(object);
+                            if (storingIndex.replace(object, moved.get(object), after)) {
+                                journal(PLACE_RECORD + " " + object + " " + joinPorts(after));
+                                switched++;
+                            } else {
+                                loads.move(after, moved.get(object), objectSize(object));
+                            }
+                        }
+                        System.out.println("Switched " + switched + " of " + moved.size() + " moved objects to their new Dstores");
+                        removeDroppedCopies(plan.removes());
+                        System.out.println("Rebalance Complete");
+                    } else {
+                        for (Integer portKey : allocations.keySet()) {
+                            forget(portKey, Protocol.REBALANCE_COMPLETE_TOKEN, "");
+                        }
+                        for (String object : moved.keySet()) {
+                            loads.move(plan.placement().get(object), moved.get(object), objectSize(object));
+                        }
+                        System.out.println("Rebalance Failed");
+                    }
+                } catch (Exception e) {
+                    System.out.println("Rebalance May Have Failed:");
+                    e.printStackTrace();
+                } finally {
+                    rebalancing.set(false);
+                    if (rebalanceAgain.getAndSet(false)) {
+                        doRebalance();
+                    }
+                }
+            }
+        }).start();
     }
 
-    private Map<Integer, String> efficientRebalance(Map<Integer, String[]> fileAllocation, Map<String, String> index, int R) {
-        int floor = Math.floorDiv(R * index.size(), portToDStore.size());
-        int ceil = Math.ceilDiv(R * index.size(), portToDStore.size());
-        ArrayList<String> addingFiles = new ArrayList<>();
-        for (String filename : index.keySet()) {
-            for (int i = 0; i < R; i++) {
-                addingFiles.add(filename);
+    /**
+     * Removes the copies a rebalance dropped, once its placement is in the index. A copy the index still lists, because
+     * its object changed during the rebalance and kept its old holders, stays where it is.
+     */
+    private void removeDroppedCopies(Map<Integer, List<String>> removes) throws InterruptedException {
+        List<CompletableFuture<String>> acks = new ArrayList<>();
+        for (Integer port : removes.keySet()) {
+            for (String object : removes.get(port)) {
+                if (!storingIndex.getOrDefault(object, List.of()).contains(port)) {
+                    acks.add(expect(port, Protocol.REMOVE_ACK_TOKEN, object));
+                    send(port, Protocol.REMOVE_TOKEN + " " + object);
+                }
             }
         }
-        Map<Integer, ArrayList<String>> returnAllocations = new TreeMap<>();
-        for (int port : fileAllocation.keySet()) {
-            returnAllocations.put(port, new ArrayList<>());
+        if (!awaitAll(acks)) {
+            for (Integer port : removes.keySet()) {
+                for (String object : removes.get(port)) {
+                    forget(port, Protocol.REMOVE_ACK_TOKEN, object);
+                }
+            }
+            System.out.println("Some dropped copies weren't removed; the next full listing will find them");
         }
+    }
 
-//-----------------------------------------------------------------------------------------
-        for (int portKey : returnAllocations.keySet()) {
-            for (String file : fileAllocation.get(portKey)) {
-                returnAllocations.get(portKey).add(file);
+    /**
+     * Rebuilds the lost shards of an erasure-coded file from the ones that survive, each on a Dstore that holds no
+     * other shard of the file, and records the rebuilt shards in fileAllocation. A file with fewer than k shards left
+     * can't be rebuilt and is forgotten.
+     */
+    private void rebuildShards(String filename, Map<Integer, Set<String>> fileAllocation)
+            throws InterruptedException {
+        ErasureCode code = erasureCodes.get(filename);
+        List<String> shards = objectsOf(filename);
+        String[] ports = new String[shards.size()];
+        Set<Integer> used = new HashSet<>();
+        int surviving = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            Integer port = listedHolder(shards.get(i), fileAllocation);
+            ports[i] = port == null ? "-" : String.valueOf(port);
+            if (port != null) {
+                used.add(port);
+                surviving++;
             }
         }
+        if (surviving < code.k()) {
+            System.out.println("Only " + surviving + " shards of '" + filename + "' are left, " + code.k() + " are needed");
+            dropFile(filename);
+            return;
+        }
 
-        while (returnAllocations.get(maxKey(returnAllocations)).size() > ceil) {
-            for (String file : returnAllocations.get(maxKey(returnAllocations))) {
-                if (!returnAllocations.get(minKey(returnAllocations)).contains(file)) {
-                    returnAllocations.get(minKey(returnAllocations)).add(file);
-                    returnAllocations.get(maxKey(returnAllocations)).remove(file);
-                    break;
+        String request = " " + filename + " " + filesizes.get(filename) + " " + code.k() + " " + code.m();
+        Map<String, Integer> targets = new LinkedHashMap<>();
+        Map<String, CompletableFuture<String>> acks = new LinkedHashMap<>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (!ports[i].equals("-")) {
+                continue;
+            }
+            Integer target = null;
+            for (Integer port : fileAllocation.keySet()) {
+                if (!used.contains(port) && (target == null || fileAllocation.get(port).size() < fileAllocation.get(target).size())) {
+                    target = port;
                 }
             }
+            if (target == null) {
+                System.out.println("No Dstore left to rebuild " + shards.get(i) + " on");
+                continue;
+            }
+            used.add(target);
+            targets.put(shards.get(i), target);
+            acks.put(shards.get(i), expect(target, Protocol.STORE_ACK_TOKEN, shards.get(i)));
+            send(target, Protocol.REBUILD_SHARD_TOKEN + request + " " + i + " " + String.join(" ", ports));
+            System.out.println("Rebuilding " + shards.get(i) + " on Dstore " + target);
         }
 
-//-----------------------------------------------------------------------------------------
+        // a rebuild reads a whole file's worth of shards, so it gets one timeout per 64 MB read rather than just one
+        long wait = timeout * (1 + Long.parseLong(filesizes.get(filename)) / (64L << 20));
+        awaitAll(new ArrayList<>(acks.values()), wait);
+        for (String shard : targets.keySet()) {
+            Integer target = targets.get(shard);
+            CompletableFuture<String> ack = acks.get(shard);
+            Long rebuilt = ack.isDone() && !ack.isCompletedExceptionally() ? ackedChecksum(ack.join()) : null;
+            if (rebuilt != null && checksums.containsKey(shard) && !rebuilt.equals(checksums.get(shard))) {
+                // decoding from a shard that went bad since the last scrub; the next rebalance tries again
+                expect(target, Protocol.REMOVE_ACK_TOKEN, shard);
+                send(target, Protocol.REMOVE_TOKEN + " " + shard);
+                System.out.println("Rebuilt " + shard + " does not match the shard stored; removed it");
+            } else if (ack.isDone() && !ack.isCompletedExceptionally()) {
+                reindex(shard, List.of(target));
+                fileAllocation.get(target).add(shard);
+                System.out.println("Rebuilt " + shard + " on Dstore " + target);
+            } else {
+                forget(target, Protocol.STORE_ACK_TOKEN, shard);
+                System.out.println("Couldn't rebuild " + shard);
+            }
+        }
+    }
 
-        Map<Integer, Map<String, ArrayList<Integer>>> filesToSend = new TreeMap<>();
-        Map<Integer, ArrayList<String>> filesToRemove = new TreeMap<>();
+    /**
+     * A Dstore that listed object, trying the ones the index has it on before all the others; null if none did.
+     */
+    private Integer listedHolder(String object, Map<Integer, Set<String>> fileAllocation) {
+        for (Integer port : storingIndex.getOrDefault(object, List.of())) {
+            if (fileAllocation.containsKey(port) && fileAllocation.get(port).contains(object)) {
+                return port;
+            }
+        }
+        for (Integer port : fileAllocation.keySet()) {
+            if (fileAllocation.get(port).contains(object)) {
+                return port;
+            }
+        }
+        return null;
+    }
 
-        for (int port : returnAllocations.keySet()) {
-            filesToSend.put(port, new TreeMap<>());
-            filesToRemove.put(port, new ArrayList<>());
+    /**
+     * Waits up to the timeout for every reply. Returns false if any is late or its Dstore failed.
+     */
+    private boolean awaitAll(List<CompletableFuture<String>> replies) throws InterruptedException {
+        return awaitAll(replies, timeout);
+    }
+
+    private boolean awaitAll(List<CompletableFuture<String>> replies, long millis) throws InterruptedException {
+        try {
+            CompletableFuture.allOf(replies.toArray(CompletableFuture<?>[]::new)).get(millis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
         }
+    }
 
-        for (Integer port : returnAllocations.keySet()) {
-            for (String file : returnAllocations.get(port)) {
-                if (Arrays.stream(fileAllocation.get(port)).noneMatch(s -> Objects.equals(s, file))) {
-                    for (Integer newPort : fileAllocation.keySet()) {
-                        if (Arrays.asList(fileAllocation.get(newPort)).contains(file)) {
-                            if (filesToSend.get(newPort).getOrDefault(file, null) == null) {
-                                filesToSend.get(newPort).put(file, new ArrayList<>());
-                            }
-                            filesToSend.get(newPort).get(file).add(port);
-                            break;
-                        }
-                    }
+    /**
+     * Waits for every reply for as long as they keep coming, giving up only once a whole timeout passes without
+     * another one, so a batch of any size allows each of its files as long as a single operation would.
+     */
+    private void awaitProgress(List<CompletableFuture<String>> replies) throws InterruptedException {
+        CompletableFuture<Void> settled = CompletableFuture.allOf(replies.stream()
+                .map(reply -> reply.handle((line, failure) -> null))
+                .toArray(CompletableFuture[]::new));
+        long done = 0;
+        while (true) {
+            try {
+                settled.get(timeout, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                long now = replies.stream().filter(CompletableFuture::isDone).count();
+                if (now == done) {
+                    return;
                 }
+                done = now;
+            } catch (ExecutionException e) {
+                return;
             }
         }
+    }
 
+    private static boolean allSucceeded(List<CompletableFuture<String>> replies) {
+        return replies.stream().allMatch(reply -> reply.state() == Future.State.SUCCESS);
+    }
 
-        for (Integer port : fileAllocation.keySet()) {
-            for (String file : fileAllocation.get(port)) {
-                if (!returnAllocations.get(port).contains(file)) {
-                    filesToRemove.get(port).add(file);
-                }
-            }
+    private void send(Integer port, String line) {
+        DstoreChannel dstore = portToDStore.get(port);
+        if (dstore != null) {
+            dstore.send(line);
         }
+    }
 
-        Map<Integer, String> rebalanceCommands = new TreeMap<>();
-        for (int port : returnAllocations.keySet()) {
-            StringBuilder command = new StringBuilder(Protocol.REBALANCE_TOKEN);
-            command.append(" ").append(filesToSend.get(port).size()); //Number of files to send
-            for (String file : filesToSend.get(port).keySet()) {
-                command.append(" ").append(file); //File to send
-                command.append(" ").append(filesToSend.get(port).get(file).size()); // Number of ports to send file to
-                for (Integer portToSend : filesToSend.get(port).get(file)) {
-                    command.append(" ").append(portToSend); //Ports to send file to
-                }
-            }
+    private void forget(Integer port, String op, String filename) {
+        DstoreChannel dstore = portToDStore.get(port);
+        if (dstore != null) {
+            dstore.forget(op, filename);
+        }
+    }
 
-            command.append(" ").append(filesToRemove.get(port).size()); // Number of files to remove
-            for (String fileToRemove : filesToRemove.get(port)) {
-                command.append(" ").append(fileToRemove);
+    private void dstoreFailed(DstoreChannel dstore) {
+        if (portToDStore.remove(dstore.port, dstore)) {
+            replicas.leave(dstore.port);
+            loads.leave(dstore.port);
+            for (String file : storingIndex.keySet()) {
+                storingIndex.computeIfPresent(file, (f, ports) -> without(ports, dstore.port));
             }
-            rebalanceCommands.put(port, String.valueOf(command));
+            System.out.println("Detected Failed DStore. Removing DStore at port " + dstore.port);
         }
+    }
 
-        return rebalanceCommands;
+    /**
+     * A Dstore found its copy of object damaged and removed it. The Dstore stops being a holder at once, so no more
+     * loads are sent there, and a rebalance copies the object back from a good replica, or rebuilds a lost shard.
+     */
+    private void replicaCorrupt(DstoreChannel dstore, String object) {
+        System.out.println("Dstore " + dstore.port + " removed a corrupt copy of " + object);
+        List<Integer> ports = storingIndex.get(object);
+        if (ports != null && ports.contains(dstore.port)) {
+            reindex(object, without(ports, dstore.port));
+        }
+        doRebalance();
     }
 
-    private Map<Integer, String> inefficientRebalance(Map<Integer, String[]> fileAllocation, Map<String, String> index, int R) {
-        ArrayList<String> addingFiles = new ArrayList<>();
-        for (String filename : index.keySet()) {
-            for (int i = 0; i < R; i++) {
-                addingFiles.add(filename);
+    /**
+     * Records the CRC32C most of an object's holders acknowledged and returns the holders that agree with it. A holder
+     * that acknowledged another one received a damaged copy, so it is sent REMOVE and left out, for the next rebalance
+     * to replace. A Dstore that acknowledged no checksum is taken to agree. A tie is broken only by a checksum already
+     * recorded for the object; without one there is no telling which copy is damaged, so all of them are kept.
+     */
+    private List<Integer> agreeOnChecksum(String object, long size, List<Integer> ports, List<CompletableFuture<String>> acks) {
+        Long[] acked = new Long[ports.size()];
+        Map<Long, Integer> votes = new HashMap<>();
+        for (int i = 0; i < ports.size(); i++) {
+            acked[i] = ackedChecksum(acks.get(i).join());
+            if (acked[i] != null) {
+                votes.merge(acked[i], 1, Integer::sum);
             }
         }
-        Map<Integer, ArrayList<String>> returnAllocations = new TreeMap<>();
-        for (int port : fileAllocation.keySet()) {
-            returnAllocations.put(port, new ArrayList<>());
+        if (votes.isEmpty()) {
+            return ports;
         }
-        Integer[] ports = returnAllocations.keySet().toArray(new Integer[0]);
-        for (int i = 0; i < addingFiles.size(); i++) {
-            returnAllocations.get(ports[i % ports.length]).add(addingFiles.get(i));
+        int most = Collections.max(votes.values());
+        List<Long> leading = new ArrayList<>();
+        votes.forEach((checksum, count) -> {
+            if (count == most) {
+                leading.add(checksum);
+            }
+        });
+        Long agreed = leading.size() == 1 ? leading.get(0) : checksums.get(object);
+        if (agreed == null || !leading.contains(agreed)) {
+            // a tie with nothing recorded to break it: every copy may be the good one, so none is removed
+            System.out.println("Holders of " + object + " disagree on its checksum, keeping every copy");
+            return ports;
         }
+        checksums.put(object, agreed);
+        List<Integer> agreeing = new ArrayList<>();
+        for (int i = 0; i < ports.size(); i++) {
+            if (acked[i] == null || acked[i].equals(agreed)) {
+                agreeing.add(ports.get(i));
+            } else {
+                System.out.println("Dstore " + ports.get(i) + " stored a damaged copy of " + object);
+                loads.remove(List.of(ports.get(i)), size);
+                expect(ports.get(i), Protocol.REMOVE_ACK_TOKEN, object);
+                send(ports.get(i), Protocol.REMOVE_TOKEN + " " + object);
+            }
+        }
+        return List.copyOf(agreeing);
+    }
 
-        //The rest should be included in the efficient rebalance. Calculating the returnAllocations is the only part
-        // which is done in an inefficient way
+    /**
+     * The CRC32C a STORE_ACK ends with, or null if it has none.
+     */
+    private static Long ackedChecksum(String ack) {
+        String[] words = ack.split(" ");
+        return words.length > 2 ? Long.valueOf(words[2]) : null;
+    }
 
+    /**
+     * The one object a file stored whole is kept as: the file itself, its compressed copy or its content object.
+     */
+    private String wholeObject(String filename) {
+        String content = contents.get(filename);
+        if (content != null) {
+            return content;
+        }
+        return storedSizes.containsKey(filename) ? filename + Protocol.COMPRESSED_NAME_SUFFIX : filename;
+    }
 
-        Map<Integer, Map<String, ArrayList<Integer>>> filesToSend = new TreeMap<>();
-        Map<Integer, ArrayList<String>> filesToRemove = new TreeMap<>();
+    /**
+     * The stored objects that make up a file: the file itself, its compressed copy or its content object, its chunks
+     * or its shards.
+     */
+    private List<String> objectsOf(String filename) {
+        ErasureCode code = erasureCodes.get(filename);
+        if (code != null) {
+            return partNames(filename, Protocol.SHARD_NAME_SEPARATOR, code.k() + code.m());
+        }
+        Long size = chunkSizes.get(filename);
+        if (size == null) {
+            return List.of(wholeObject(filename));
+        }
+        return partNames(filename, Protocol.CHUNK_NAME_SEPARATOR, chunkCount(Long.parseLong(filesizes.get(filename)), size));
+    }
 
-        for (int port : returnAllocations.keySet()) {
-            filesToSend.put(port, new TreeMap<>());
-            filesToRemove.put(port, new ArrayList<>());
+    private static List<String> partNames(String filename, String separator, int parts) {
+        List<String> names = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            names.add(filename + separator + i);
         }
+        return names;
+    }
 
-        for (Integer port : returnAllocations.keySet()) {
-            for (String file : returnAllocations.get(port)) {
-                if (Arrays.stream(fileAllocation.get(port)).noneMatch(s -> Objects.equals(s, file))) {
-                    for (Integer newPort : fileAllocation.keySet()) {
-                        if (Arrays.asList(fileAllocation.get(newPort)).contains(file)) {
-                            if (filesToSend.get(newPort).getOrDefault(file, null) == null) {
-                                filesToSend.get(newPort).put(file, new ArrayList<>());
-                            }
-                            filesToSend.get(newPort).get(file).add(port);
-                            break;
-                        }
-                    }
-                }
-            }
+    private static int chunkCount(long size, long chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * The file an object belongs to. Any of the files sharing a content object stands for all of them; one nobody
+     * refers to is its own owner.
+     */
+    private String ownerOf(String object) {
+        if (object.startsWith(Protocol.CONTENT_NAME_PREFIX)) {
+            Iterator<String> sharers = references.getOrDefault(object, Set.of()).iterator();
+            return sharers.hasNext() ? sharers.next() : object;
         }
+        if (object.endsWith(Protocol.COMPRESSED_NAME_SUFFIX)) {
+            return object.substring(0, object.length() - Protocol.COMPRESSED_NAME_SUFFIX.length());
+        }
+        int separator = Math.max(object.lastIndexOf(Protocol.CHUNK_NAME_SEPARATOR), object.lastIndexOf(Protocol.SHARD_NAME_SEPARATOR));
+        return separator < 0 ? object : object.substring(0, separator);
+    }
 
+    /**
+     * Every file an object belongs to.
+     */
+    private List<String> ownersOf(String object) {
+        if (object.startsWith(Protocol.CONTENT_NAME_PREFIX)) {
+            return List.copyOf(references.getOrDefault(object, Set.of()));
+        }
+        return List.of(ownerOf(object));
+    }
 
-        for (Integer port : fileAllocation.keySet()) {
-            for (String file : fileAllocation.get(port)) {
-                if (!returnAllocations.get(port).contains(file)) {
-                    filesToRemove.get(port).add(file);
-                }
+    /**
+     * Whether filename going takes object with it. A content object other files still share stays, and filename's
+     * reference to it is dropped at once; the last reference is left in place and dropped with the object by unindex.
+     * Every other object belongs to its file alone.
+     */
+    private boolean lastReference(String filename, String object) {
+        synchronized (references) {
+            Set<String> sharers = references.get(object);
+            if (sharers == null || (sharers.size() == 1 && sharers.contains(filename))) {
+                return true;
             }
+            sharers.remove(filename);
+            return false;
         }
+    }
+
+    /**
+     * Forgets a file whose data can no longer be found, along with any of its objects that still are.
+     */
+    private void dropFile(String filename) {
+        forgetFile(filename);
+        journal(REMOVE_RECORD + " " + filename);
+    }
 
-        Map<Integer, String> rebalanceCommands = new TreeMap<>();
-        for (int port : returnAllocations.keySet()) {
-            StringBuilder command = new StringBuilder(Protocol.REBALANCE_TOKEN);
-            command.append(" ").append(filesToSend.get(port).size()); //Number of files to send
-            for (String file : filesToSend.get(port).keySet()) {
-                command.append(" ").append(file); //File to send
-                command.append(" ").append(filesToSend.get(port).get(file).size()); // Number of ports to send file to
-                for (Integer portToSend : filesToSend.get(port).get(file)) {
-                    command.append(" ").append(portToSend); //Ports to send file to
+    private void forgetFile(String filename) {
+        if (filesizes.containsKey(filename)) {
+            for (String object : objectsOf(filename)) {
+                if (lastReference(filename, object)) {
+                    unindex(object);
                 }
             }
+        }
+        contents.remove(filename);
+        chunkSizes.remove(filename);
+        erasureCodes.remove(filename);
+        storedSizes.remove(filename);
+        filesizes.remove(filename);
+        index.remove(filename);
+    }
 
-            command.append(" ").append(filesToRemove.get(port).size()); // Number of files to remove
-            for (String fileToRemove : filesToRemove.get(port)) {
-                command.append(" ").append(fileToRemove);
-            }
-            rebalanceCommands.put(port, String.valueOf(command));
+    /**
+     * The size of one stored object: a whole file, its compressed copy or content object, one of its chunks or one of
+     * its shards.
+     */
+    private long objectSize(String object) {
+        String filename = ownerOf(object);
+        long size = Long.parseLong(filesizes.getOrDefault(filename, "0"));
+        if (object.equals(filename) || object.startsWith(Protocol.CONTENT_NAME_PREFIX)) {
+            return size;
         }
-        ArrayList<Integer> emptyKeys = new ArrayList<>();
-        for (int key : rebalanceCommands.keySet()) {
-            if (Objects.equals(rebalanceCommands.get(key), "REBALANCE 0 0")) {
-                emptyKeys.add(key);
-            }
+        if (object.endsWith(Protocol.COMPRESSED_NAME_SUFFIX)) {
+            return storedSizes.getOrDefault(filename, 0L);
         }
-        for (int key : emptyKeys) {
-            rebalanceCommands.remove(key);
+        ErasureCode code = erasureCodes.get(filename);
+        if (code != null) {
+            return ReedSolomon.shardSize(size, code.k());
         }
-        return rebalanceCommands;
+        int part = Integer.parseInt(object.substring(filename.length() + Protocol.CHUNK_NAME_SEPARATOR.length()));
+        long chunk = chunkSizes.getOrDefault(filename, size);
+        return Math.max(0, Math.min(chunk, size - part * chunk));
+    }
 
+    /**
+     * Moves an object that is already in storingIndex to new holders, keeping the load counters in step. An object
+     * removed meanwhile stays removed.
+     */
+    private void reindex(String object, List<Integer> ports) {
+        List<Integer> before = storingIndex.replace(object, ports);
+        if (before != null) {
+            loads.move(before, ports, objectSize(object));
+            journal(PLACE_RECORD + " " + object + " " + joinPorts(ports));
+        }
     }
 
-    public static void main(String[] args) throws IOException {
-        Controller controller = new Controller(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
-        controller.run();
+    private void unindex(String object) {
+        long size = objectSize(object);
+        references.remove(object);
+        checksums.remove(object);
+        List<Integer> before = storingIndex.remove(object);
+        if (before != null) {
+            loads.remove(before, size);
+        }
     }
 
+    /**
+     * Logs a change the maps already show. Losing a Dstore is never logged: the Dstores join again after a restart
+     * and the first rebalance sorts out which copies survived.
+     */
+    private CompletableFuture<Void> journal(String record) {
+        return metadata == null ? CompletableFuture.completedFuture(null) : metadata.append(record);
+    }
 
-    private void runRebalance() {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(rebalance);
-                    doRebalance();
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
+    /**
+     * "FILE name size chunkSize|- k+m|- storedSize|- object ports checksum|-..." for a stored file, or null if it has
+     * gone meanwhile.
+     */
+    private String fileRecord(String filename) {
+        String size = filesizes.get(filename);
+        if (size == null) {
+            return null;
+        }
+        Long chunk = chunkSizes.get(filename);
+        ErasureCode code = erasureCodes.get(filename);
+        Long storedSize = storedSizes.get(filename);
+        StringBuilder record = new StringBuilder(FILE_RECORD + " " + filename + " " + size + " "
+                + (chunk == null ? "-" : chunk) + " " + (code == null ? "-" : code.k() + "+" + code.m()) + " "
+                + (storedSize == null ? "-" : storedSize));
+        for (String object : objectsOf(filename)) {
+            Long checksum = checksums.get(object);
+            record.append(" ").append(object).append(" ").append(joinPorts(storingIndex.getOrDefault(object, List.of())))
+                    .append(" ").append(checksum == null ? "-" : checksum);
+        }
+        return record.toString();
     }
 
-    private void doRebalance() {
-        new Thread(() -> {
-            if (dstores.size() >= R && !rebalanceInProgress[0] && allStored()) {
-                System.out.println("Starting Rebalance");
-                rebalanceInProgress[0] = true;
-                try {
-                    Map<Integer, String[]> fileAllocation = new TreeMap<>();
-                    for (Integer port : portToDStore.keySet()) {
-                        Socket dstore = portToDStore.get(port);
-                        new PrintWriter(portToDStore.get(port).getOutputStream(), true).println(Protocol.LIST_TOKEN);
-                        dstore.setSoTimeout(timeout);
-                        BufferedReader listIn = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
-                        String list = listIn.readLine();
-                        if (Objects.equals(list, Protocol.LIST_TOKEN)) {
-                            fileAllocation.put(port, new String[0]);
-                            System.out.println("No files at Dstore " + port);
-                        } else {
-                            String[] files = list.replaceFirst("LIST ", "").split(" ");
-                            System.out.println("Files at Dstore " + port + ": " + Arrays.toString(files));
-                            fileAllocation.put(port, files);
-                        }
-                    }
+    /**
+     * Logs a file just stored. The future completes once its record is written.
+     */
+    private CompletableFuture<Void> journalStore(String filename) {
+        String record = fileRecord(filename);
+        return record == null ? CompletableFuture.completedFuture(null) : journal(record);
+    }
 
-                    for (String filename : index.keySet()) {
-                        boolean found = false;
-                        for (String[] files : fileAllocation.values()) {
-                            for (String file : files) {
-                                if (Objects.equals(file, filename)) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                        }
-                        if (!found) {
-                            index.remove(filename);
-                        }
-                    }
+    /**
+     * A FILE record for every stored file, the state a metadata snapshot holds.
+     */
+    private Iterator<String> snapshot() {
+        return index.entrySet().stream()
+                .filter(entry -> entry.getValue().equals("store complete"))
+                .map(entry -> fileRecord(entry.getKey()))
+                .filter(Objects::nonNull)
+                .iterator();
+    }
 
-                    for (Integer port : fileAllocation.keySet()) {
-                        for (String file : fileAllocation.get(port)) {
-                            if (!index.containsKey(file)) {
-                                new PrintWriter(portToDStore.get(port).getOutputStream(), true).println(Protocol.REMOVE_TOKEN + " " + file);
-                                BufferedReader portReader = new BufferedReader(new InputStreamReader(portToDStore.get(port).getInputStream()));
-                                String message;
-                                if (!Objects.equals(message = portReader.readLine(), Protocol.REMOVE_ACK_TOKEN + " " + file)) {
-                                    System.out.println("Removed extra file '" + file + "' from index");
-                                }
-                            }
-                        }
+    /**
+     * Applies one record from the metadata log while the Controller starts, before any Dstore has joined.
+     */
+    private void replay(String[] record) {
+        switch (record[0]) {
+            case FILE_RECORD -> {
+                forgetFile(record[1]);
+                filesizes.put(record[1], record[2]);
+                if (!record[3].equals("-")) {
+                    chunkSizes.put(record[1], Long.parseLong(record[3]));
+                }
+                if (!record[4].equals("-")) {
+                    erasureCodes.put(record[1], ErasureCode.parse(record[4]));
+                }
+                if (!record[5].equals("-")) {
+                    storedSizes.put(record[1], Long.parseLong(record[5]));
+                }
+                for (int i = 6; i + 2 < record.length; i += 3) {
+                    storingIndex.put(record[i], splitPorts(record[i + 1]));
+                    if (!record[i + 2].equals("-")) {
+                        checksums.put(record[i], Long.parseLong(record[i + 2]));
                     }
-
-
-                    //Map<Integer, String> allocations = efficientRebalance(fileAllocation);
-                    Map<Integer, String> allocations = inefficientRebalance(fileAllocation, index, R);
-                    System.out.println("New File Allocations: " + allocations);
-                    CountDownLatch balanced = new CountDownLatch(allocations.size());
-                    for (Integer portKey : allocations.keySet()) {
-                        new Thread(() -> {
-                            try {
-                                BufferedReader portReader = new BufferedReader(new InputStreamReader(portToDStore.get(portKey).getInputStream()));
-                                if (Objects.equals(portReader.readLine(), Protocol.REBALANCE_COMPLETE_TOKEN)) {
-                                    balanced.countDown();
-                                    System.out.println("Recieved REBALANCE_COMLPETE. Waiting for " + balanced.getCount() + " more.");
-                                }
-                            } catch (IOException e) {
-                                System.err.println("Error while Rebalancing");
-                                throw new RuntimeException(e);
-                            }
-                        }).start();
-                        new PrintWriter(portToDStore.get(portKey).getOutputStream(), true).println(allocations.get(portKey));
+                    if (record[i].startsWith(Protocol.CONTENT_NAME_PREFIX)) {
+                        contents.put(record[1], record[i]);
+                        references.computeIfAbsent(record[i], object -> new ConcurrentSkipListSet<>()).add(record[1]);
                     }
-
-                    if (balanced.await(timeout, TimeUnit.MILLISECONDS)) {
-                        System.out.println("Rebalance Complete");
-                    } else {
-                        System.out.println("Rebalance Failed");
-                    }
-                    rebalanceInProgress[0] = false;
-                } catch (Exception e) {
-                    System.out.println("Rebalance May Have Failed:");
-                    e.printStackTrace();
-                    rebalanceInProgress[0] = false;
                 }
+                index.put(record[1], "store complete");
             }
-        }).start();
+            case REMOVE_RECORD -> forgetFile(record[1]);
+            case PLACE_RECORD -> storingIndex.replace(record[1], splitPorts(record[2]));
+            default -> System.out.println("Unknown metadata record: " + String.join(" ", record));
+        }
     }
 
+    private static List<Integer> splitPorts(String ports) {
+        List<Integer> split = new ArrayList<>();
+        if (!ports.equals("-")) {
+            for (String port : ports.split(",")) {
+                split.add(Integer.parseInt(port));
+            }
+        }
+        return List.copyOf(split);
+    }
 
-    private boolean allStored() {
-        return index.values().stream().allMatch(s -> Objects.equals(s, "store complete"));
+    private static String joinPorts(List<Integer> ports) {
+        if (ports.isEmpty()) {
+            return "-";
+        }
+        StringBuilder joined = new StringBuilder();
+        for (Integer port : ports) {
+            if (!joined.isEmpty()) {
+                joined.append(",");
+            }
+            joined.append(port);
+        }
+        return joined.toString();
+    }
+
+    private CompletableFuture<String> expect(Integer port, String op, String filename) {
+        DstoreChannel dstore = portToDStore.get(port);
+        return dstore == null
+                ? CompletableFuture.failedFuture(new IOException("Dstore " + port + " left"))
+                : dstore.expect(op, filename);
+    }
+
+    private static List<Integer> without(List<Integer> ports, int port) {
+        List<Integer> remaining = new ArrayList<>(ports);
+        remaining.remove((Integer) port);
+        return List.copyOf(remaining);
     }
 
     private void run() throws IOException {
@@ -382,28 +976,21 @@ public class Controller {
         }
         logFile.createNewFile();
         logWriter = new FileOutputStream(logFile);
+        String folder = System.getProperty("controller.metadata");
+        if (folder != null) {
+            metadata = new MetadataStore(Path.of(folder),
+                    Boolean.parseBoolean(System.getProperty("controller.metadata.sync", "true")),
+                    Long.getLong("controller.metadata.snapshotEvery", 1_000_000), this::replay, this::snapshot);
+        }
         try {
-            ServerSocket listen = new ServerSocket(cport);
+            ServerSocket listen = new ServerSocket(cport, ACCEPT_BACKLOG);
             runRebalance();
             System.out.println("Controller started on port " + cport);
             for (; ; ) {
                 try {
                     final Socket client = listen.accept();
                     System.out.println("Accepted new connection");
-                    isDstore.put(client.getPort(), false);
-                    new Thread(() -> {
-                        while (true) {
-                            if (!rebalanceInProgress[0]) {
-                                try {
-                                    BufferedReader messageIn = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                                    PrintWriter messageOut = new PrintWriter(client.getOutputStream(), true);
-                                    handleMessages(client, messageIn, messageOut);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                    }).start();
+                    connectionThreads.newThread(() -> serve(client)).start();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -413,217 +1000,670 @@ public class Controller {
         }
     }
 
-    private void handleMessages(Socket client, BufferedReader messageIn, PrintWriter messageOut) {
-        int port = -1;
+    /**
+     * Reads messages from one connection until it closes or turns out to be a Dstore. The reader and writer are built
+     * once and the thread blocks in readLine() between messages, so idle connections cost no CPU.
+     */
+    private void serve(Socket client) {
         try {
-            if (!isDstore.get(client.getPort()) && !rebalanceInProgress[0]) {
-                String line;
-                if ((line = messageIn.readLine()) != null) {
-                    String[] message = line.split(" ");
-                    switch (message[0]) {
-                        case Protocol.JOIN_TOKEN -> {
-                            dstores.add(client);
-                            //dStoreMessageOuts.put(Integer.parseInt(message[1]), new PrintWriter(new Socket(localHost, Integer.parseInt(message[1])).getOutputStream(), true));
-                            portToDStore.put(Integer.parseInt(message[1]), client);
-                            port = Integer.parseInt(message[1]);
-                            isDstore.put(client.getPort(), true);
-                            System.out.println("DStore joined on port " + Integer.parseInt(message[1]));
-                            doRebalance();
-                        }
-                        case Protocol.STORE_TOKEN -> store(message, messageOut);
-                        case Protocol.LOAD_TOKEN -> load(message, messageOut);
-                        case Protocol.REMOVE_TOKEN -> remove(message, messageOut);
-                        case Protocol.LIST_TOKEN -> list(line, messageOut);
-                        case Protocol.RELOAD_TOKEN -> reload(message, messageOut);
-
-                        case null, default -> logWriter.write((new Date() + ": " + line + "\n").getBytes());
-
-                    }
+            BufferedReader messageIn = new BufferedReader(new InputStreamReader(client.getInputStream()), CONNECTION_BUFFER);
+            PrintWriter messageOut = new PrintWriter(new OutputStreamWriter(client.getOutputStream()), true);
+            String line;
+            while ((line = messageIn.readLine()) != null) {
+                if (line.equals(Wire.HELLO)) {
+                    // the client waits for this answer before its first frame, so messageIn holds nothing more
+                    messageOut.println(Wire.HELLO);
+                    serveFrames(client);
+                    return;
+                }
+                if (handleMessage(client, line.split(" "), messageIn, messageOut)) {
+                    // the Dstore's own channel reads this connection from now on
+                    return;
                 }
             }
+            client.close();
         } catch (IOException e) {
-            loadingDStores.remove(client);
-            dstores.remove(client);
-            if (port != -1) {
-                for (String file : storingIndex.keySet()) {
-                    storingIndex.get(file).remove(port);
-                }
-                portToDStore.remove(port);
-                System.out.println("Detected Failed DStore. Removing DStore at port " + port);
-            } else {
-                System.out.println("Detected Failed DStore.");
-            }
+            System.out.println("Client connection closed: " + e.getMessage());
         } catch (InterruptedException e) {
             System.err.println("Error while Handling Message");
             e.printStackTrace();
-
+        } finally {
+            // a client that hangs up has finished with its last load
+            LoadAttempt attempt = attempts.remove(client);
+            if (attempt != null) {
+                attempt.finish(replicas, false);
+            }
         }
     }
 
-    private Integer smallDstore(ArrayList<Integer> ports) {
-        ArrayList<Integer> allPorts = (ArrayList<Integer>) List.copyOf(portToDStore.keySet());
-        int min = allPorts.getFirst();
-        int n = 0;
-        int lastMin = 10000000;
-        while (ports.contains(min)){
-            n++;
-            min = allPorts.get(n);
+    /**
+     * Serves a client that switched to binary frames. LOAD, STORE, REMOVE and LIST_PAGE are handled straight from the
+     * frame's fields; any other frame is handled as the text message it stands for. Every reply goes back as a frame
+     * carrying the request's id, and a frame that can't be acted on is answered ERROR_MALFORMED rather than only logged
+     * as a text message would be, so the client isn't left waiting. Dstores always join over text.
+     */
+    private void serveFrames(Socket client) throws IOException, InterruptedException {
+        DataInputStream frames = new DataInputStream(new BufferedInputStream(client.getInputStream(), CONNECTION_BUFFER));
+        Wire.FrameWriter messageOut = new Wire.FrameWriter(client.getOutputStream());
+        Wire.Frame frame = new Wire.Frame();
+        while (frame.read(frames)) {
+            messageOut.request(frame.request());
+            if (serveFrame(client, frame, messageOut)) {
+                continue;
+            }
+            String[] message = message(frame);
+            if (message == null || malformed(message[0], message)) {
+                String logged = message == null ? "frame with opcode " + frame.opcode() : String.join(" ", message);
+                logWriter.write((new Date() + ": " + logged + "\n").getBytes());
+                messageOut.println(Protocol.ERROR_MALFORMED_TOKEN);
+            } else {
+                handleMessage(client, message, null, messageOut);
+            }
         }
+        client.close();
+    }
 
-        for (Integer key : allPorts) {
-            if (!ports.contains(key)) {
-                int m = 0;
-                for (String file : storingIndex.keySet()) {
-                    if (storingIndex.get(file).contains(key)) {
-                        m++;
+    /**
+     * Handles a LOAD, STORE, REMOVE or LIST_PAGE frame without turning it into a text message: sizes are read as
+     * numbers in place and the filename is decoded once, after it has been checked to be a single word. Returns false,
+     * having done nothing, for any other frame or one whose fields don't fit.
+     */
+    private boolean serveFrame(Socket client, Wire.Frame frame, PrintWriter messageOut)
+            throws IOException, InterruptedException {
+        String token = Wire.token(frame.opcode());
+        if (token == null) {
+            return false;
+        }
+        switch (token) {
+            case Protocol.LOAD_TOKEN -> {
+                if (frame.fields() != 1 || !frame.word(0)) {
+                    return false;
+                }
+                endLoad(client, token);
+                load(client, token, frame.string(0), 0, -1, messageOut);
+            }
+            case Protocol.STORE_TOKEN -> {
+                if (frame.fields() != 2 || !frame.word(0) || frame.number(1) < 0) {
+                    return false;
+                }
+                String filename = frame.string(0);
+                if (reservedName(filename)) {
+                    return false;
+                }
+                endLoad(client, token);
+                store(token, filename, frame.number(1), null, null, null, messageOut);
+            }
+            case Protocol.REMOVE_TOKEN -> {
+                if (frame.fields() != 1 || !frame.word(0)) {
+                    return false;
+                }
+                endLoad(client, token);
+                remove(frame.string(0), messageOut);
+            }
+            case Protocol.LIST_PAGE_TOKEN -> {
+                if (frame.fields() < 1 || frame.fields() > 3 || frame.number(0) < 1) {
+                    return false;
+                }
+                String prefix = "";
+                String after = null;
+                for (int i = 1; i < frame.fields(); i++) {
+                    String argument = frame.string(i);
+                    if (argument.startsWith(PREFIX_ARGUMENT)) {
+                        prefix = argument.substring(PREFIX_ARGUMENT.length());
+                    } else if (argument.startsWith(AFTER_ARGUMENT)) {
+                        after = argument.substring(AFTER_ARGUMENT.length());
+                    } else {
+                        return false;
                     }
                 }
-                if (m < lastMin) {
-                    lastMin = m;
-                    min = key;
+                endLoad(client, token);
+                listPage((int) Math.min(frame.number(0), MAX_PAGE), prefix, after, messageOut);
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The text message a frame stands for, or null for an unknown opcode, a JOIN, or a field that isn't a single word
+     * and so couldn't have come as text or be passed on to a Dstore as text. The fields are checked in place before any
+     * is decoded; the token is the Protocol constant itself, and a LIST decodes nothing at all.
+     */
+    private static String[] message(Wire.Frame frame) {
+        String token = Wire.token(frame.opcode());
+        if (token == null || token.equals(Protocol.JOIN_TOKEN)) {
+            return null;
+        }
+        if (token.equals(Protocol.LIST_TOKEN) && frame.fields() == 0) {
+            return LIST_MESSAGE;
+        }
+        for (int i = 0; i < frame.fields(); i++) {
+            if (!frame.word(i)) {
+                return null;
+            }
+        }
+        String[] message = new String[frame.fields() + 1];
+        message[0] = token;
+        for (int i = 0; i < frame.fields(); i++) {
+            message[i + 1] = frame.string(i);
+        }
+        return message;
+    }
+
+    /**
+     * Whatever a client sends next, its last load is over, except a HEDGE, sent while it is still under way; only a
+     * RELOAD carries on with the same attempt.
+     */
+    private void endLoad(Socket client, String token) {
+        boolean reload = Protocol.RELOAD_TOKEN.equals(token);
+        if (!Protocol.HEDGE_TOKEN.equals(token)) {
+            LoadAttempt attempt = reload ? attempts.get(client) : attempts.remove(client);
+            if (attempt != null) {
+                attempt.finish(replicas, reload);
+            }
+        }
+    }
+
+    /**
+     * Handles one message. Returns true if the connection has joined as a Dstore.
+     */
+    private boolean handleMessage(Socket client, String[] message, BufferedReader messageIn, PrintWriter messageOut)
+            throws IOException, InterruptedException {
+        endLoad(client, message[0]);
+        switch (message[0]) {
+            case Protocol.JOIN_TOKEN -> {
+                if (malformed(Protocol.JOIN_TOKEN, message)) {
+                    logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+                    return false;
                 }
+                int port = Integer.parseInt(message[1]);
+                DstoreChannel dstore = new DstoreChannel(port, client, messageIn, messageOut);
+                loads.join(port);
+                replicas.join(port);
+                // before it is listed, so no rebalance takes a damaged copy it restarted with for a good one
+                reconcile(dstore, message);
+                portToDStore.put(port, dstore);
+                dstore.start(connectionThreads, this::dstoreFailed, this::replicaCorrupt,
+                        (loaded, object) -> replicas.done(loaded.port, object));
+                System.out.println("DStore joined on port " + port);
+                doRebalance();
+                return true;
             }
+            // STORE_CHAIN is placed exactly like STORE; the client then uploads once to the first port in the reply
+            case Protocol.STORE_TOKEN, Protocol.STORE_CHAIN_TOKEN, Protocol.STORE_CHUNKED_TOKEN, Protocol.STORE_EC_TOKEN,
+                 Protocol.STORE_COMPRESSED_TOKEN, Protocol.STORE_DEDUP_TOKEN -> store(message, messageOut);
+            case Protocol.LOAD_TOKEN, Protocol.LOAD_CHUNKED_TOKEN, Protocol.LOAD_RANGE_TOKEN, Protocol.LOAD_EC_TOKEN,
+                 Protocol.LOAD_COMPRESSED_TOKEN, Protocol.LOAD_DEDUP_TOKEN -> load(client, message, messageOut);
+            case Protocol.REMOVE_TOKEN -> remove(message, messageOut);
+            case Protocol.STORE_BATCH_TOKEN -> storeBatch(message, messageOut);
+            case Protocol.LOAD_BATCH_TOKEN -> loadBatch(message, messageOut);
+            case Protocol.REMOVE_BATCH_TOKEN -> removeBatch(message, messageOut);
+            case Protocol.LIST_TOKEN -> list(message, messageOut);
+            case Protocol.LIST_PAGE_TOKEN -> listPage(message, messageOut);
+            case Protocol.RELOAD_TOKEN -> reload(client, message, messageOut);
+            case Protocol.HEDGE_TOKEN -> hedge(client, message, messageOut);
+
+            case null, default -> logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
         }
-        return min;
+        return false;
     }
+
+    /**
+     * Puts the objects a restarted Dstore still holds back in storingIndex, wherever the index still has the object
+     * and the size and CRC32C the Dstore gave match, so the rebalance that follows only copies what is really missing.
+     * A copy that doesn't match is damaged and is removed from the Dstore. Whatever the index placed on the Dstore and
+     * was not kept is dropped from it, so the rebalance replaces it. Any other file it holds is left for that rebalance
+     * to remove.
+     */
+    private void reconcile(DstoreChannel dstore, String[] message) {
+        int port = dstore.port;
+        Set<String> kept = new HashSet<>();
+        for (int i = 2; i < message.length; i += 3) {
+            String object = message[i];
+            long size = Long.parseLong(message[i + 1]);
+            Long checksum = checksums.get(object);
+            List<Integer> before = storingIndex.get(object);
+            if (before == null || !Objects.equals(index.get(ownerOf(object)), "store complete")) {
+                continue;
+            }
+            if (objectSize(object) != size || (checksum != null && checksum != Long.parseLong(message[i + 2]))) {
+                System.out.println("Dstore " + port + " restarted with a damaged copy of " + object);
+                dstore.expect(Protocol.REMOVE_ACK_TOKEN, object);
+                dstore.send(Protocol.REMOVE_TOKEN + " " + object);
+                continue;
+            }
+            if (before.contains(port)) {
+                // recovered from the metadata log with this port already in place
+                loads.add(List.of(port), size);
+                kept.add(object);
+                continue;
+            }
+            List<Integer> after = new ArrayList<>(before);
+            after.add(port);
+            if (storingIndex.replace(object, before, List.copyOf(after))) {
+                journal(PLACE_RECORD + " " + object + " " + joinPorts(after));
+                loads.add(List.of(port), size);
+                kept.add(object);
+            }
+        }
+        // the metadata log may place objects here that the Dstore no longer holds, or holds damaged; they were never
+        // counted on it, so they leave the index without touching its counter
+        for (Map.Entry<String, List<Integer>> entry : storingIndex.entrySet()) {
+            List<Integer> ports = entry.getValue();
+            if (ports.contains(port) && !kept.contains(entry.getKey())) {
+                List<Integer> after = without(ports, port);
+                if (storingIndex.replace(entry.getKey(), ports, after)) {
+                    journal(PLACE_RECORD + " " + entry.getKey() + " " + joinPorts(after));
+                }
+            }
+        }
+        if (message.length > 2) {
+            System.out.println("Dstore " + port + " kept " + kept.size() + " of the " + (message.length - 2) / 3 + " files it restarted with");
+        }
+    }
+
+    /**
+     * Picks copies Dstores for each object, least loaded first, from the live load counters. Each placement is counted
+     * at once, so the chunks of one file and concurrent stores spread across the cluster. Returns null, releasing
+     * whatever it had placed, if there are not enough Dstores.
+     */
+    private Map<String, List<Integer>> place(Map<String, Long> sizes, int copies) {
+        Map<String, List<Integer>> placement = new LinkedHashMap<>();
+        for (String object : sizes.keySet()) {
+            List<Integer> ports = loads.place(copies, sizes.get(object));
+            if (ports == null) {
+                release(placement, sizes);
+                return null;
+            }
+            placement.put(object, ports);
+        }
+        return placement;
+    }
+
+    /**
+     * Uncounts a placement whose store failed.
+     */
+    private void release(Map<String, List<Integer>> placement, Map<String, Long> sizes) {
+        for (String object : placement.keySet()) {
+            loads.remove(placement.get(object), sizes.get(object));
+        }
+    }
+
     private void store(String[] message, PrintWriter messageOut) throws InterruptedException, IOException {
-        if (malformed(Protocol.STORE_TOKEN, message)) {
+        if (malformed(message[0], message)) {
             StringBuilder line = new StringBuilder();
             for (String word : message) {
                 line.append(" ").append(word);
             }
             logWriter.write((new Date() + ": " + line + "\n").getBytes());
+            return;
+        }
+        Long storedSize = message[0].equals(Protocol.STORE_COMPRESSED_TOKEN) ? Long.valueOf(message[3]) : null;
+        String content = message[0].equals(Protocol.STORE_DEDUP_TOKEN) ? Protocol.CONTENT_NAME_PREFIX + message[3] : null;
+        ErasureCode code = null;
+        if (message[0].equals(Protocol.STORE_EC_TOKEN)) {
+            code = message.length == 5 ? new ErasureCode(Integer.parseInt(message[3]), Integer.parseInt(message[4])) : erasureCode;
+        }
+        store(message[0], message[1], Long.parseLong(message[2]), storedSize, content, code, messageOut);
+    }
 
-        } else if (dstores.size() < R) {
+    /**
+     * Stores filename, size bytes, as token asks. storedSize is the size of a file the client has compressed,
+     * dedupContent the content object of a file to deduplicate and code the erasure code of a file to erasure-code;
+     * each is null for any other file.
+     */
+    private void store(String token, String filename, long size, Long storedSize, String dedupContent, ErasureCode code,
+                       PrintWriter messageOut) throws InterruptedException, IOException {
+        if (portToDStore.size() < R) {
             messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + dstores.size() + ". Can't Store File ");
-        } else if (index.containsKey(message[1])) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Store File ");
+        } else if (index.putIfAbsent(filename, "store in progress") != null) {
             messageOut.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
             System.out.println(Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
         } else {
-            while (!loadingDStores.isEmpty()) {
-                loadingDStores.removeFirst();
+            System.out.println("Storing file: " + filename);
+            boolean chunked = token.equals(Protocol.STORE_CHUNKED_TOKEN) && size > chunkThreshold;
+            // a deduplicated file is uploaded as its content object, or not at all if that is stored already
+            String content = dedupContent;
+            boolean shared = false;
+            if (content != null) {
+                synchronized (references) {
+                    Set<String> sharers = references.get(content);
+                    if (sharers == null && !storingIndex.containsKey(content)) {
+                        references.put(content, new ConcurrentSkipListSet<>(Set.of(filename)));
+                    } else if (sharers != null && storingIndex.containsKey(content) && objectSize(content) == size
+                            && Objects.equals(index.get(ownerOf(content)), "store complete")) {
+                        sharers.add(filename);
+                        contents.put(filename, content);
+                        filesizes.put(filename, String.valueOf(size));
+                        index.put(filename, "store complete");
+                        shared = true;
+                    } else {
+                        // the content is being stored or removed right now, so this copy is stored under its own name
+                        content = null;
+                    }
+                }
             }
-            index.put(message[1], "store in progress");
-            System.out.println("Storing file: " + message[1]);
-
-            ArrayList<Integer> intList = new ArrayList<>();
-
-            for (int i = 0; i < R ; i++){
-                intList.add(smallDstore(intList));
+            if (shared) {
+                journalStore(filename).join();
+                messageOut.println(Protocol.STORE_COMPLETE_TOKEN);
+                System.out.println("File stored: " + filename + ", sharing " + content);
+                return;
             }
-
-            Integer[] ints = intList.toArray(new Integer[R]);
-            System.out.println(Arrays.toString(ints));
-            ArrayList<Socket> dStoresToSend = new ArrayList<>();
-            StringBuilder toClient = new StringBuilder(Protocol.STORE_TO_TOKEN);
-            System.out.print("Storing file to ports:");
-
-            var ports = portToDStore.keySet().toArray();
-            for (int i = 0; i < ints.length; i++) {
-                toClient.append(" ");
-                toClient.append(ports[ints[i]]);
-                dStoresToSend.add(portToDStore.get(ports[ints[i]]));
-                System.out.print(" " + ports[ints[i]]);
+            Map<String, Long> sizes = new LinkedHashMap<>();
+            if (chunked) {
+                List<String> chunks = partNames(filename, Protocol.CHUNK_NAME_SEPARATOR, chunkCount(size, chunkSize));
+                for (int i = 0; i < chunks.size(); i++) {
+                    sizes.put(chunks.get(i), Math.min(chunkSize, size - i * chunkSize));
+                }
+            } else if (storedSize != null) {
+                sizes.put(filename + Protocol.COMPRESSED_NAME_SUFFIX, storedSize);
+            } else if (content != null) {
+                sizes.put(content, size);
+            } else {
+                sizes.put(filename, size);
             }
-            System.out.println();
 
-            CountDownLatch allDstores = new CountDownLatch(R);
+            Map<String, List<Integer>> placement;
+            if (code != null) {
+                // the k + m shards are placed like k + m replicas of one shard, so each gets its own Dstore
+                long shardSize = ReedSolomon.shardSize(size, code.k());
+                List<Integer> ports = loads.place(code.k() + code.m(), shardSize);
+                placement = ports == null ? null : new LinkedHashMap<>();
+                sizes.clear();
+                for (int i = 0; ports != null && i < ports.size(); i++) {
+                    String shard = filename + Protocol.SHARD_NAME_SEPARATOR + i;
+                    placement.put(shard, List.of(ports.get(i)));
+                    sizes.put(shard, shardSize);
+                }
+            } else {
+                placement = place(sizes, R);
+            }
+            if (placement == null) {
+                if (content != null) {
+                    references.remove(content);
+                }
+                index.remove(filename);
+                messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Store File ");
+                return;
+            }
 
-            for (Socket dstore : dStoresToSend) {
-                new Thread(() -> {
-                    try {
-                        BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
-                        String newLine = dstoreIn.readLine();
-                        if (newLine != null) {
-                            if (newLine.equals(Protocol.STORE_ACK_TOKEN + " " + message[1])) {
-                                allDstores.countDown();
-                                System.out.println("STORE_ACK Received. Waiting for " + (allDstores.getCount()) + " more");
-                            }
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Error while Storing file: " + message[1]);
-                    }
-                }).start();
+            List<CompletableFuture<String>> acks = new ArrayList<>();
+            Map<String, List<CompletableFuture<String>>> objectAcks = new HashMap<>();
+            for (String object : placement.keySet()) {
+                List<CompletableFuture<String>> replies = new ArrayList<>();
+                for (Integer port : placement.get(object)) {
+                    replies.add(expect(port, Protocol.STORE_ACK_TOKEN, object));
+                }
+                objectAcks.put(object, replies);
+                acks.addAll(replies);
+            }
+            StringBuilder toClient;
+            if (code != null) {
+                toClient = new StringBuilder(Protocol.STORE_SHARDS_TO_TOKEN + " " + code.k() + " " + code.m());
+                for (List<Integer> ports : placement.values()) {
+                    toClient.append(" ").append(ports.getFirst());
+                }
+            } else if (chunked) {
+                toClient = new StringBuilder(Protocol.STORE_CHUNKS_TO_TOKEN + " " + chunkSize + " " + placement.size());
+                for (List<Integer> ports : placement.values()) {
+                    toClient.append(" ").append(joinPorts(ports));
+                }
+            } else {
+                toClient = new StringBuilder(content != null ? Protocol.STORE_CONTENT_TO_TOKEN : Protocol.STORE_TO_TOKEN);
+                for (Integer port : placement.values().iterator().next()) {
+                    toClient.append(" ").append(port);
+                }
             }
+            System.out.println("Storing file to ports: " + placement.values());
             messageOut.println(toClient);
-            System.out.println("Waiting for STORE_ACKs from " + R + " DStores");
-            if (allDstores.await(timeout, TimeUnit.MILLISECONDS)) {
+            System.out.println("Waiting for " + acks.size() + " STORE_ACKs");
+            if (awaitAll(acks)) {
                 System.out.println("All STORE_ACKs Received");
-
-                storingIndex.put(message[1], new ArrayList<>());
-                for (Integer num : ints) {
-                    storingIndex.get(message[1]).add((Integer) ports[num]);
+                boolean damaged = false;
+                for (String object : placement.keySet()) {
+                    List<Integer> agreeing = agreeOnChecksum(object, sizes.get(object), placement.get(object), objectAcks.get(object));
+                    damaged |= agreeing.size() < placement.get(object).size();
+                    placement.put(object, agreeing);
+                }
+                if (content != null) {
+                    contents.put(filename, content);
+                }
+                storingIndex.putAll(placement);
+                if (chunked) {
+                    chunkSizes.put(filename, chunkSize);
                 }
-                filesizes.put(message[1], message[2]);
-                index.put(message[1], "store complete");
+                if (code != null) {
+                    erasureCodes.put(filename, code);
+                }
+                if (storedSize != null) {
+                    storedSizes.put(filename, storedSize);
+                }
+                filesizes.put(filename, String.valueOf(size));
+                index.put(filename, "store complete");
+                journalStore(filename).join();
                 messageOut.println(Protocol.STORE_COMPLETE_TOKEN);
-                System.out.println("File stored: " + message[1]);
+                System.out.println("File stored: " + filename);
+                if (damaged) {
+                    doRebalance();
+                }
             } else {
-                index.remove(message[1]);
-                System.out.println("File couldn't be stored: " + message[1]);
+                for (String object : placement.keySet()) {
+                    for (Integer port : placement.get(object)) {
+                        forget(port, Protocol.STORE_ACK_TOKEN, object);
+                    }
+                }
+                release(placement, sizes);
+                if (content != null) {
+                    references.remove(content);
+                }
+                index.remove(filename);
+                System.out.println("File couldn't be stored: " + filename);
             }
         }
     }
 
-    private void load(String[] message, PrintWriter messageOut) throws IOException {
-        if (malformed(Protocol.LOAD_TOKEN, message)) {
+    /**
+     * A LOAD_RANGE must ask for a span that lies inside the file. Nothing is added, so a huge offset and length can't
+     * overflow past the check.
+     */
+    private boolean validRange(String filename, long offset, long length) {
+        long size = Long.parseLong(filesizes.get(filename));
+        return offset >= 0 && length >= 0 && offset <= size && length <= size - offset;
+    }
+
+    private void load(Socket client, String[] message, PrintWriter messageOut) throws IOException {
+        if (malformed(message[0], message)) {
             StringBuilder line = new StringBuilder();
             for (String word : message) {
                 line.append(" ").append(word);
             }
             logWriter.write((new Date() + ": " + line + "\n").getBytes());
-        } else if (dstores.size() < R) {
-            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + dstores.size() + ". Can't Load File ");
+        } else if (message[0].equals(Protocol.LOAD_RANGE_TOKEN)) {
+            load(client, message[0], message[1], Long.parseLong(message[2]), Long.parseLong(message[3]), messageOut);
+        } else {
+            load(client, message[0], message[1], 0, -1, messageOut);
+        }
+    }
+
+    /**
+     * Loads filename as token asks; offset and length are the span a LOAD_RANGE asks for and are ignored otherwise.
+     */
+    private void load(Socket client, String token, String filename, long offset, long length, PrintWriter messageOut) {
+        if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Load File ");
             messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-        } else if (!index.containsKey(message[1])) {
+        } else if (!index.containsKey(filename)) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-        } else if (index.get(message[1]).equals("store in progress")) {
+        } else if (index.get(filename).equals("store in progress")) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-        } else if (index.get(message[1]).equals("remove in progress")) {
+        } else if (index.get(filename).equals("remove in progress")) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+        } else if (token.equals(Protocol.LOAD_RANGE_TOKEN) && !validRange(filename, offset, length)) {
+            System.out.println(Protocol.ERROR_INVALID_RANGE_TOKEN + ": " + filename + " " + offset + " " + length);
+            messageOut.println(Protocol.ERROR_INVALID_RANGE_TOKEN);
+        } else if (contents.containsKey(filename) && !token.equals(Protocol.LOAD_DEDUP_TOKEN)) {
+            // the Dstores only know the content object, not the names that share it
+            System.out.println("Couldn't load file: " + filename + " is deduplicated");
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+        } else if (erasureCodes.containsKey(filename)) {
+            loadShards(token, filename, messageOut);
+        } else if (chunkSizes.containsKey(filename)) {
+            loadChunks(token, filename, messageOut);
         } else {
-            while (!loadingDStores.isEmpty()) {
-                loadingDStores.removeFirst();
+            System.out.println("Loading File: " + filename);
+            LoadAttempt attempt = new LoadAttempt(filename, token.equals(Protocol.LOAD_COMPRESSED_TOKEN));
+            attempts.put(client, attempt);
+            loadFrom(attempt, messageOut);
+        }
+    }
+
+    /**
+     * Sends a client to a replica of its file it has not tried yet, chosen by the ReplicaSelector, or answers
+     * ERROR_LOAD if every replica has been tried.
+     */
+    private void loadFrom(LoadAttempt attempt, PrintWriter messageOut) {
+        String object = wholeObject(attempt.filename);
+        attempt.current = replicas.start(object, storingIndex.getOrDefault(object, List.of()), attempt.tried);
+        if (attempt.current == null) {
+            System.out.println("Couldn't load file: " + attempt.filename);
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        int port = attempt.current.port();
+        attempt.tried.add(port);
+        System.out.println("Loading file from port: " + port);
+        messageOut.println(loadFromReply(attempt, port));
+    }
+
+    /**
+     * LOAD_CONTENT_FROM port size object for a deduplicated file, LOAD_COMPRESSED_FROM port size storedSize for a
+     * compressed file and a client that takes it as stored, and LOAD_FROM port size for any other; the Dstore inflates
+     * a compressed file for a LOAD_DATA of its plain name.
+     */
+    private String loadFromReply(LoadAttempt attempt, int port) {
+        String content = contents.get(attempt.filename);
+        if (content != null) {
+            return Protocol.LOAD_CONTENT_FROM_TOKEN + " " + port + " " + filesizes.get(attempt.filename) + " " + content;
+        }
+        Long storedSize = storedSizes.get(attempt.filename);
+        if (attempt.compressed && storedSize != null) {
+            return Protocol.LOAD_COMPRESSED_FROM_TOKEN + " " + port + " " + filesizes.get(attempt.filename) + " " + storedSize;
+        }
+        return Protocol.LOAD_FROM_TOKEN + " " + port + " " + filesizes.get(attempt.filename);
+    }
+
+    /**
+     * Answers a load of a chunked file with every chunk's replicas. Each chunk lists its replicas starting at a
+     * different one, so a client fetching all chunks in parallel spreads the reads over every Dstore that holds them.
+     * Range loads get the same answer and read only the chunks their span touches.
+     */
+    private void loadChunks(String token, String filename, PrintWriter messageOut) {
+        if (token.equals(Protocol.LOAD_TOKEN) || token.equals(Protocol.LOAD_EC_TOKEN)
+                || token.equals(Protocol.LOAD_COMPRESSED_TOKEN) || token.equals(Protocol.LOAD_DEDUP_TOKEN)) {
+            System.out.println("Couldn't load file: " + filename + " is stored in chunks");
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        List<String> chunks = objectsOf(filename);
+        StringBuilder reply = new StringBuilder(Protocol.LOAD_CHUNKS_FROM_TOKEN + " " + filesizes.get(filename) + " "
+                + chunkSizes.get(filename) + " " + chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            List<Integer> holders = new ArrayList<>(storingIndex.getOrDefault(chunks.get(i), List.of()));
+            if (holders.isEmpty()) {
+                System.out.println("Couldn't load file: no replica of " + chunks.get(i));
+                messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+                return;
             }
-            System.out.println("Loading File: " + message[1]);
-            Integer storePort = storingIndex.get(message[1]).getFirst();
-            Socket store = portToDStore.get(storePort);
-            loadingDStores.add(store);
-            messageOut.println(Protocol.LOAD_FROM_TOKEN + " " + storePort + " " + filesizes.get(message[1]));
-            System.out.println("Loading file from port: " + storePort);
+            Collections.rotate(holders, -(i % holders.size()));
+            reply.append(" ").append(joinPorts(holders));
         }
+        System.out.println("Loading " + chunks.size() + " chunks of " + filename);
+        messageOut.println(reply);
     }
 
-    private void reload(String[] message, PrintWriter messageOut) throws IOException {
+    /**
+     * Answers LOAD_EC of an erasure-coded file with its code and the Dstore holding each shard, "-" for a lost one.
+     * The client reads any k shards and decodes the rest. Every other kind of load needs the plain file and fails.
+     */
+    private void loadShards(String token, String filename, PrintWriter messageOut) {
+        if (!token.equals(Protocol.LOAD_EC_TOKEN)) {
+            System.out.println("Couldn't load file: " + filename + " is erasure-coded");
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        ErasureCode code = erasureCodes.get(filename);
+        StringBuilder reply = new StringBuilder(Protocol.LOAD_SHARDS_FROM_TOKEN + " " + filesizes.get(filename) + " "
+                + code.k() + " " + code.m());
+        int available = 0;
+        for (String shard : objectsOf(filename)) {
+            List<Integer> holders = storingIndex.getOrDefault(shard, List.of());
+            if (holders.isEmpty()) {
+                reply.append(" -");
+            } else {
+                reply.append(" ").append(holders.getFirst());
+                available++;
+            }
+        }
+        if (available < code.k()) {
+            System.out.println("Couldn't load file: only " + available + " shards of " + filename + " are left");
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        System.out.println("Loading " + filename + " from " + available + " shards");
+        messageOut.println(reply);
+    }
+
+    private void reload(Socket client, String[] message, PrintWriter messageOut) throws IOException {
         if (malformed(Protocol.RELOAD_TOKEN, message)) {
             StringBuilder line = new StringBuilder();
             for (String word : message) {
                 line.append(" ").append(word);
             }
             logWriter.write((new Date() + ": " + line + "\n").getBytes());
+            return;
         }
-        Socket store = null;
-        Integer port = null;
-        for (int i = 0; i < storingIndex.get(message[1]).size(); i++) {
-            if (!loadingDStores.contains(portToDStore.get(storingIndex.get(message[1]).get(i)))) {
-                System.out.println("Attempt " + i + " at loading " + message[1]);
-                port = storingIndex.get(message[1]).get(i);
-                store = portToDStore.get(port);
-                break;
-            }
+        LoadAttempt attempt = attempts.get(client);
+        if (attempt == null || !attempt.filename.equals(message[1])) {
+            attempt = new LoadAttempt(message[1], false);
+            attempts.put(client, attempt);
         }
-        if (store == null) {
-            System.out.println("Couldn't load file: " + message[1]);
+        System.out.println("Attempt " + attempt.tried.size() + " at loading " + message[1]);
+        loadFrom(attempt, messageOut);
+    }
+
+    /**
+     * Serves HEDGE name from a client whose load of name has not started arriving yet: sends it to a second replica to
+     * race the first, or answers ERROR_LOAD, leaving it to wait, if no other replica is left or the hedge budget is
+     * spent. Either load may win; both count as outstanding until the client's next message.
+     */
+    private void hedge(Socket client, String[] message, PrintWriter messageOut) throws IOException {
+        if (malformed(Protocol.HEDGE_TOKEN, message)) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+            return;
+        }
+        LoadAttempt attempt = attempts.get(client);
+        if (attempt == null || !attempt.filename.equals(message[1]) || attempt.current == null || attempt.hedge != null) {
             messageOut.println(Protocol.ERROR_LOAD_TOKEN);
-        } else {
-            loadingDStores.add(store);
-            System.out.println("Loading file from port: " + port);
-            messageOut.println(Protocol.LOAD_FROM_TOKEN + " " + port + " " + filesizes.get(message[1]));
+            return;
+        }
+        String object = wholeObject(attempt.filename);
+        attempt.hedge = replicas.hedge(object, storingIndex.getOrDefault(object, List.of()), attempt.tried);
+        if (attempt.hedge == null) {
+            System.out.println("Not hedging load of " + message[1]);
+            messageOut.println(Protocol.ERROR_LOAD_TOKEN);
+            return;
         }
+        int port = attempt.hedge.port();
+        attempt.tried.add(port);
+        System.out.println("Hedging load of " + message[1] + " from port " + port + ", " + replicas.hedgeStats());
+        messageOut.println(loadFromReply(attempt, port));
     }
 
     private void remove(String[] message, PrintWriter messageOut) throws IOException, InterruptedException {
@@ -633,77 +1673,338 @@ public class Controller {
                 line.append(" ").append(word);
             }
             logWriter.write((new Date() + ": " + line + "\n").getBytes());
-        } else if (dstores.size() < R) {
-            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + dstores.size() + ". Can't Remove File ");
+        } else {
+            remove(message[1], messageOut);
+        }
+    }
+
+    private void remove(String filename, PrintWriter messageOut) throws InterruptedException {
+        if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Remove File ");
             messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-        } else if (!index.containsKey(message[1])) {
+        } else if (!index.containsKey(filename)) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-        } else if (index.get(message[1]).equals("store in progress")) {
+        } else if (index.get(filename).equals("store in progress")) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-        } else if (index.get(message[1]).equals("remove in progress")) {
+        } else if (index.get(filename).equals("remove in progress")) {
             System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             messageOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
         } else {
-            while (!loadingDStores.isEmpty()) {
-                loadingDStores.removeFirst();
-            }
-            System.out.println("Removing File: " + message[1]);
-            index.put(message[1], "remove in progress");
-            CountDownLatch allDstores = new CountDownLatch(storingIndex.get(message[1]).size());
-            for (Integer dstoreport : storingIndex.get(message[1])) {
-                new Thread(() -> {
-                    try {
-                        BufferedReader dstoreIn = new BufferedReader(new InputStreamReader(portToDStore.get(dstoreport).getInputStream()));
-                        String newLine;
-                        if ((newLine = dstoreIn.readLine()) != null) {
-                            if (newLine.equals(Protocol.REMOVE_ACK_TOKEN + " " + message[1]) || newLine.equals(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + message[1])) {
-                                allDstores.countDown();
-                                System.out.println("REMOVE_ACK Received. Waiting for " + allDstores.getCount() + " more.");
-                            }
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Error while removing file: " + message[1]);
-                    }
-                }).start();
+            System.out.println("Removing File: " + filename);
+            index.put(filename, "remove in progress");
+            Map<String, List<Integer>> holders = new LinkedHashMap<>();
+            for (String object : objectsOf(filename)) {
+                // content still shared with other files stays on the Dstores
+                if (lastReference(filename, object)) {
+                    holders.put(object, storingIndex.getOrDefault(object, List.of()));
+                }
             }
-            for (Integer dStorePort : storingIndex.get(message[1])) {
-                new PrintWriter(portToDStore.get(dStorePort).getOutputStream(), true).println(Protocol.REMOVE_TOKEN + " " + message[1]);
+            List<CompletableFuture<String>> acks = new ArrayList<>();
+            for (String object : holders.keySet()) {
+                for (Integer dstorePort : holders.get(object)) {
+                    DstoreChannel dstore = portToDStore.get(dstorePort);
+                    if (dstore != null) {
+                        acks.add(dstore.expect(Protocol.REMOVE_ACK_TOKEN, object));
+                        dstore.send(Protocol.REMOVE_TOKEN + " " + object);
+                    }
+                }
             }
-            System.out.println("Waiting for REMOVE_ACKs from " + storingIndex.get(message[1]).size() + " DStores");
-            if (allDstores.await(timeout, TimeUnit.MILLISECONDS)) {
+            System.out.println("Waiting for " + acks.size() + " REMOVE_ACKs");
+            if (awaitAll(acks)) {
                 System.out.println("All REMOVE_ACKs Received");
-                index.remove(message[1]);
-                storingIndex.remove(message[1]);
-                filesizes.remove(message[1]);
+                index.remove(filename);
+                for (String object : holders.keySet()) {
+                    unindex(object);
+                }
+                contents.remove(filename);
+                chunkSizes.remove(filename);
+                erasureCodes.remove(filename);
+                storedSizes.remove(filename);
+                filesizes.remove(filename);
+                journal(REMOVE_RECORD + " " + filename).join();
                 messageOut.println(Protocol.REMOVE_COMPLETE_TOKEN);
-                System.out.println("Removed File: " + message[1]);
+                System.out.println("Removed File: " + filename);
+            } else {
+                for (String object : holders.keySet()) {
+                    for (Integer dstorePort : holders.get(object)) {
+                        forget(dstorePort, Protocol.REMOVE_ACK_TOKEN, object);
+                    }
+                }
             }
         }
     }
 
-    private void list(String line, PrintWriter messageOut) throws IOException {
-        if (!line.equals(Protocol.LIST_TOKEN)) {
-            logWriter.write((new Date() + ": " + line + "\n").getBytes());
-        } else if (dstores.size() < R) {
-            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + dstores.size() + ". Can't List Files ");
+    /**
+     * Answers STORE_BATCH count (name size)*. Every file is placed at once and STORE_BATCH_TO count follows with, for
+     * each file in order, the Dstores to upload it to or the error that stopped it. Once the STORE_ACKs are in, or
+     * have stopped coming, STORE_BATCH_COMPLETE count gives each file's result: STORE_COMPLETE, the error it already
+     * had, or ERROR_STORE. The stored files are logged together and share their forces to disk.
+     */
+    private void storeBatch(String[] message, PrintWriter messageOut) throws InterruptedException, IOException {
+        if (malformed(Protocol.STORE_BATCH_TOKEN, message)) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+            return;
+        }
+        if (portToDStore.size() < R) {
             messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
-        } else {
-            while (!loadingDStores.isEmpty()) {
-                loadingDStores.removeFirst();
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Store Files ");
+            return;
+        }
+        int count = Integer.parseInt(message[1]);
+        String[] results = new String[count];
+        Map<String, List<Integer>> placement = new HashMap<>();
+        Map<String, List<CompletableFuture<String>>> acks = new HashMap<>();
+        List<CompletableFuture<String>> allAcks = new ArrayList<>();
+        StringBuilder toClient = new StringBuilder(Protocol.STORE_BATCH_TO_TOKEN + " " + count);
+        for (int i = 0; i < count; i++) {
+            String filename = message[2 + 2 * i];
+            List<Integer> ports = null;
+            if (index.putIfAbsent(filename, "store in progress") != null) {
+                results[i] = Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN;
+            } else if ((ports = loads.place(R, Long.parseLong(message[3 + 2 * i]))) == null) {
+                index.remove(filename);
+                results[i] = Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN;
+            } else {
+                placement.put(filename, ports);
+                List<CompletableFuture<String>> fileAcks = new ArrayList<>();
+                for (Integer port : ports) {
+                    fileAcks.add(expect(port, Protocol.STORE_ACK_TOKEN, filename));
+                }
+                acks.put(filename, fileAcks);
+                allAcks.addAll(fileAcks);
             }
+            toClient.append(" ").append(ports == null ? results[i] : joinPorts(ports));
+        }
+        System.out.println("Storing a batch of " + placement.size() + " of " + count + " files");
+        messageOut.println(toClient);
+        awaitProgress(allAcks);
+
+        List<CompletableFuture<Void>> logged = new ArrayList<>();
+        boolean damaged = false;
+        StringBuilder reply = new StringBuilder(Protocol.STORE_BATCH_COMPLETE_TOKEN + " " + count);
+        for (int i = 0; i < count; i++) {
+            String filename = message[2 + 2 * i];
+            if (results[i] == null) {
+                List<Integer> ports = placement.get(filename);
+                if (allSucceeded(acks.get(filename))) {
+                    List<Integer> agreeing = agreeOnChecksum(filename, Long.parseLong(message[3 + 2 * i]), ports, acks.get(filename));
+                    damaged |= agreeing.size() < ports.size();
+                    storingIndex.put(filename, agreeing);
+                    filesizes.put(filename, message[3 + 2 * i]);
+                    index.put(filename, "store complete");
+                    logged.add(journalStore(filename));
+                    results[i] = Protocol.STORE_COMPLETE_TOKEN;
+                } else {
+                    for (Integer port : ports) {
+                        forget(port, Protocol.STORE_ACK_TOKEN, filename);
+                    }
+                    loads.remove(ports, Long.parseLong(message[3 + 2 * i]));
+                    index.remove(filename);
+                    results[i] = Protocol.ERROR_STORE_TOKEN;
+                }
+            }
+            reply.append(" ").append(results[i]);
+        }
+        CompletableFuture.allOf(logged.toArray(CompletableFuture<?>[]::new)).join();
+        messageOut.println(reply);
+        System.out.println("Stored " + logged.size() + " of a batch of " + count + " files");
+        if (damaged) {
+            doRebalance();
+        }
+    }
+
+    /**
+     * Answers LOAD_BATCH count name* with LOAD_BATCH_FROM count and, for each file in order, the Dstores holding it
+     * and its size, or "-" and the error that stops it being loaded. Each file lists its holders starting at a
+     * different one, so the batch's reads spread over every replica, and the client can fail over without a RELOAD.
+     * Only files stored whole can be loaded in a batch.
+     */
+    private void loadBatch(String[] message, PrintWriter messageOut) throws IOException {
+        if (malformed(Protocol.LOAD_BATCH_TOKEN, message)) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+            return;
+        }
+        if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Load Files ");
+            messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        int count = Integer.parseInt(message[1]);
+        StringBuilder reply = new StringBuilder(Protocol.LOAD_BATCH_FROM_TOKEN + " " + count);
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            String filename = message[2 + i];
+            String size = filesizes.get(filename);
+            List<Integer> holders = new ArrayList<>(storingIndex.getOrDefault(wholeObject(filename), List.of()));
+            if (!Objects.equals(index.get(filename), "store complete") || size == null) {
+                reply.append(" - ").append(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            } else if (chunkSizes.containsKey(filename) || erasureCodes.containsKey(filename) || contents.containsKey(filename)
+                    || holders.isEmpty()) {
+                reply.append(" - ").append(Protocol.ERROR_LOAD_TOKEN);
+            } else {
+                Collections.rotate(holders, -(i % holders.size()));
+                reply.append(" ").append(joinPorts(holders)).append(" ").append(size);
+                found++;
+            }
+        }
+        messageOut.println(reply);
+        System.out.println("Loading a batch of " + found + " of " + count + " files");
+    }
+
+    /**
+     * Answers REMOVE_BATCH count name*. Each Dstore gets a single REMOVE_BATCH for every file of the batch it holds,
+     * and once the acknowledgements are in, or have stopped coming, REMOVE_BATCH_COMPLETE count gives each file's
+     * result: REMOVE_COMPLETE, ERROR_FILE_DOES_NOT_EXIST, or ERROR_REMOVE for one that is left, like a timed-out
+     * REMOVE, in progress.
+     */
+    private void removeBatch(String[] message, PrintWriter messageOut) throws IOException, InterruptedException {
+        if (malformed(Protocol.REMOVE_BATCH_TOKEN, message)) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+            return;
+        }
+        if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't Remove Files ");
+            messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        int count = Integer.parseInt(message[1]);
+        String[] results = new String[count];
+        Map<String, Map<String, List<Integer>>> holders = new HashMap<>();
+        Map<String, List<CompletableFuture<String>>> acks = new HashMap<>();
+        List<CompletableFuture<String>> allAcks = new ArrayList<>();
+        Map<Integer, List<String>> commands = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String filename = message[2 + i];
+            if (!index.replace(filename, "store complete", "remove in progress")) {
+                results[i] = Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN;
+                continue;
+            }
+            Map<String, List<Integer>> fileHolders = new LinkedHashMap<>();
+            List<CompletableFuture<String>> fileAcks = new ArrayList<>();
+            for (String object : objectsOf(filename)) {
+                if (!lastReference(filename, object)) {
+                    continue;
+                }
+                fileHolders.put(object, storingIndex.getOrDefault(object, List.of()));
+                for (Integer port : fileHolders.get(object)) {
+                    DstoreChannel dstore = portToDStore.get(port);
+                    if (dstore != null) {
+                        fileAcks.add(dstore.expect(Protocol.REMOVE_ACK_TOKEN, object));
+                        commands.computeIfAbsent(port, p -> new ArrayList<>()).add(object);
+                    }
+                }
+            }
+            holders.put(filename, fileHolders);
+            acks.put(filename, fileAcks);
+            allAcks.addAll(fileAcks);
+        }
+        for (Map.Entry<Integer, List<String>> command : commands.entrySet()) {
+            send(command.getKey(), Protocol.REMOVE_BATCH_TOKEN + " " + command.getValue().size() + " "
+                    + String.join(" ", command.getValue()));
+        }
+        System.out.println("Removing a batch of " + holders.size() + " of " + count + " files from " + commands.size() + " Dstores");
+        awaitProgress(allAcks);
+
+        List<CompletableFuture<Void>> logged = new ArrayList<>();
+        StringBuilder reply = new StringBuilder(Protocol.REMOVE_BATCH_COMPLETE_TOKEN + " " + count);
+        for (int i = 0; i < count; i++) {
+            String filename = message[2 + i];
+            if (results[i] == null) {
+                if (allSucceeded(acks.get(filename))) {
+                    forgetFile(filename);
+                    logged.add(journal(REMOVE_RECORD + " " + filename));
+                    results[i] = Protocol.REMOVE_COMPLETE_TOKEN;
+                } else {
+                    for (Map.Entry<String, List<Integer>> object : holders.get(filename).entrySet()) {
+                        for (Integer port : object.getValue()) {
+                            forget(port, Protocol.REMOVE_ACK_TOKEN, object.getKey());
+                        }
+                    }
+                    results[i] = Protocol.ERROR_REMOVE_TOKEN;
+                }
+            }
+            reply.append(" ").append(results[i]);
+        }
+        CompletableFuture.allOf(logged.toArray(CompletableFuture<?>[]::new)).join();
+        messageOut.println(reply);
+        System.out.println("Removed " + logged.size() + " of a batch of " + count + " files");
+    }
+
+    private void list(String[] message, PrintWriter messageOut) throws IOException {
+        if (message.length != 1) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+        } else if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't List Files ");
+            messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+        } else {
             System.out.println("Listing Stored Files");
-            StringBuilder list = new StringBuilder(Protocol.LIST_TOKEN);
-            for (String filename : index.keySet()) {
-                if (Objects.equals(index.get(filename), "store complete")) {
-                    list.append(" ").append(filename);
-                    System.out.println("File: " + filename);
+            // written name by name so the reply never sits whole in memory
+            messageOut.print(Protocol.LIST_TOKEN);
+            int listed = 0;
+            for (Map.Entry<String, String> file : index.entrySet()) {
+                if (file.getValue().equals("store complete")) {
+                    messageOut.print(" ");
+                    messageOut.print(file.getKey());
+                    listed++;
                 }
             }
-            messageOut.println(list);
-            System.out.println("Files Listed");
+            messageOut.println();
+            System.out.println(listed + " Files Listed");
+        }
+    }
+
+    /**
+     * Answers LIST_PAGE size [prefix=p] [after=name] with "LIST_PAGE" and up to size stored files, at most MAX_PAGE,
+     * that start with p and sort after name. A full page means there may be more: the client asks again with the last
+     * name it got as after. The page is read straight off the sorted index and written to the socket as it goes, so
+     * the cost follows the page size rather than the number of files. Each page reflects the index as it is read;
+     * files stored or removed between pages are seen or missed according to where they sort.
+     */
+    private void listPage(String[] message, PrintWriter messageOut) throws IOException {
+        if (malformed(Protocol.LIST_PAGE_TOKEN, message)) {
+            logWriter.write((new Date() + ": " + String.join(" ", message) + "\n").getBytes());
+            return;
+        }
+        String prefix = "";
+        String after = null;
+        for (int i = 2; i < message.length; i++) {
+            if (message[i].startsWith(PREFIX_ARGUMENT)) {
+                prefix = message[i].substring(PREFIX_ARGUMENT.length());
+            } else {
+                after = message[i].substring(AFTER_ARGUMENT.length());
+            }
+        }
+        listPage(Math.min(Integer.parseInt(message[1]), MAX_PAGE), prefix, after, messageOut);
+    }
+
+    /**
+     * Writes a page of up to size files that start with prefix and sort after after, which may be null.
+     */
+    private void listPage(int size, String prefix, String after, PrintWriter messageOut) {
+        if (portToDStore.size() < R) {
+            System.out.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN + ": " + portToDStore.size() + ". Can't List Files ");
+            messageOut.println(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        NavigableMap<String, String> from = after != null && after.compareTo(prefix) >= 0
+                ? index.tailMap(after, false)
+                : index.tailMap(prefix, true);
+        messageOut.print(Protocol.LIST_PAGE_TOKEN);
+        int listed = 0;
+        for (Map.Entry<String, String> file : from.entrySet()) {
+            if (listed == size || !file.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (file.getValue().equals("store complete")) {
+                messageOut.print(" ");
+                messageOut.print(file.getKey());
+                listed++;
+            }
         }
+        messageOut.println();
+        System.out.println("Listed a page of " + listed + " files");
     }
 
 }
@@ -1,24 +1,215 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Dstore {
+    private static final int TRANSFER_BUFFER = 64 * 1024;
+    // "clear" (default) empties the folder at startup; "keep" finds the files already there and offers them in JOIN
+    private static final String RESTART = System.getProperty("dstore.restart", "clear");
+    private static final long MANIFEST_INTERVAL = Long.getLong("dstore.manifest.interval", 10_000);
+    // files up to this many bytes are packed into segment files rather than kept one per file; 0 packs none
+    private static final long PACK_THRESHOLD = Long.getLong("dstore.pack.threshold", 0);
+    private static final long PACK_SEGMENT_SIZE = Long.getLong("dstore.pack.segmentSize", 64L << 20);
+    // a full segment is compacted once less than this fraction of it is still needed
+    private static final double PACK_COMPACT_BELOW = Double.parseDouble(System.getProperty("dstore.pack.compactBelow", "0.5"));
+    private static final long PACK_COMPACT_INTERVAL = Long.getLong("dstore.pack.compactInterval", 30_000);
+    // direct memory set aside for the read cache of hot files; 0 turns it off
+    private static final long CACHE_BYTES = Long.getLong("dstore.cache.bytes", 0);
+    private static final long CACHE_MAX_OBJECT = Long.getLong("dstore.cache.maxObject", 1 << 20);
+    private static final long CACHE_REPORT_INTERVAL = Long.getLong("dstore.cache.reportInterval", 60_000);
+    // loads from disk are read through a buffer and checked against the CRC32C the file was stored with, giving up
+    // the zero-copy transferTo; false sends them unchecked with transferTo, leaving corruption to the scrub
+    private static final boolean VERIFY_LOADS = Boolean.parseBoolean(System.getProperty("dstore.verify.load", "true"));
+    // the background scrub of every stored file: bytes a second it may read (0 turns it off), and ms between passes
+    private static final long SCRUB_BANDWIDTH = Long.getLong("dstore.scrub.bandwidth", 16L << 20);
+    private static final long SCRUB_INTERVAL = Long.getLong("dstore.scrub.interval", 60_000);
+    private static final ThreadLocal<ByteBuffer> CHECK_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER));
+    private static final ThreadLocal<ByteBuffer> CHECK_REST_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER));
+    private static final ThreadLocal<ByteBuffer> INFLATE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER));
+    static final String PARTIAL_PREFIX = ".incoming-";
+
     final int port;
     final int cport;
     final int timeout;
     final String file_folder;
     Map<String, String> badMessageLog = new TreeMap<>();
     InetAddress localHost = InetAddress.getLocalHost();
-    Map<String, String> files = new TreeMap<>();
+    Inventory files = new Inventory();
+    // the small files packed into segments, or null if packing is off and no segments are left from a previous run
+    SegmentStore segments;
+    // the most loaded files, kept off the heap, or null if caching is off
+    final ReadCache cache;
+    // REBALANCE sends: how many run at once, and the cap in bytes a second on all of them together (0 for none)
+    final TransferScheduler transfers;
     PrintWriter controllerOut;
     BufferedReader controllerIn;
     private FileOutputStream logWriter;
 
+    /**
+     * Bytes [start, start + length) of channel hold a stored file, which may be a file of its own or packed into a
+     * segment with others.
+     */
+    record Span(FileChannel channel, long start, long length) implements Closeable {
+        /**
+         * Sends length bytes of the file, from offset, the same way as sendFile.
+         */
+        long send(long offset, long length, WritableByteChannel out) throws IOException {
+            return transfer(channel, start + offset, length, out);
+        }
+
+        /**
+         * Sends length bytes of the file, from offset, reading the whole file through buffer to check it against
+         * checksum on the way. The part of the span in the buffer that holds its last byte is only sent once the rest
+         * of the file, read through rest, has been checked too, so a corrupt file never reaches the peer complete.
+         */
+        void sendChecked(long offset, long length, long checksum, ByteBuffer buffer, ByteBuffer rest, WritableByteChannel out) throws IOException {
+            long end = offset + length;
+            CRC32C crc = new CRC32C();
+            long position = 0;
+            while (true) {
+                long from = position;
+                position += read(position, buffer);
+                crc.update(buffer.duplicate());
+                boolean last = position >= end;
+                if (last) {
+                    while (position < this.length) {
+                        position += read(position, rest);
+                        crc.update(rest);
+                    }
+                    if (crc.getValue() != checksum) {
+                        throw new CorruptFileException("Stored data does not match its checksum");
+                    }
+                }
+                if (from + buffer.limit() > offset) {
+                    buffer.limit((int) (Math.min(from + buffer.limit(), end) - from)).position((int) Math.max(offset - from, 0));
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+                if (last) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Inflates the file, which holds zlib-deflated data, read through input, and sends length bytes of the result
+         * from offset, or all of it from offset if length is -1, through output. Returns false if the inflated data
+         * ends first. Data that will not inflate, or fails the zlib check at its end, is a CorruptFileException.
+         */
+        boolean sendInflated(long offset, long length, ByteBuffer input, ByteBuffer output, WritableByteChannel out) throws IOException {
+            // a span ending past Long.MAX_VALUE can't lie inside the file, and is treated as ending there
+            long end = length < 0 || length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length;
+            Inflater inflater = new Inflater();
+            try {
+                long position = 0;
+                long inflated = 0;
+                while (inflated < end && !inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        if (position == this.length) {
+                            throw new CorruptFileException("Compressed data ends before its end marker");
+                        }
+                        position += read(position, input);
+                        inflater.setInput(input);
+                    }
+                    int produced = inflater.inflate(output.clear());
+                    // only the part of what was just inflated that lies in [offset, end) is sent
+                    long from = Math.max(inflated, offset);
+                    long to = Math.min(inflated + produced, end);
+                    if (from < to) {
+                        output.limit((int) (to - inflated)).position((int) (from - inflated));
+                        while (output.hasRemaining()) {
+                            out.write(output);
+                        }
+                    }
+                    inflated += produced;
+                }
+                return inflated >= (length < 0 ? offset : end);
+            } catch (DataFormatException e) {
+                throw new CorruptFileException("Compressed data does not inflate: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * The CRC32C of the file, read through buffer, taking each buffer's worth from bandwidth first unless it is
+         * null.
+         */
+        long checksum(ByteBuffer buffer, TransferScheduler.TokenBucket bandwidth) throws IOException {
+            CRC32C crc = new CRC32C();
+            for (long position = 0; position < length; ) {
+                if (bandwidth != null) {
+                    bandwidth.take(Math.min(buffer.capacity(), length - position));
+                }
+                position += read(position, buffer);
+                crc.update(buffer);
+            }
+            return crc.getValue();
+        }
+
+        /**
+         * Fills buffer, flipped, with as much of the file from position as fits and returns how many bytes that is.
+         */
+        private int read(long position, ByteBuffer buffer) throws IOException {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), length - position));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + position + buffer.position()) < 0) {
+                    throw new EOFException("Stored data ends before byte " + length);
+                }
+            }
+            return buffer.flip().remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A stored file that no longer matches the CRC32C it was stored with, or a received one that does not match the
+     * CRC32C its sender gave.
+     */
+    static class CorruptFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CorruptFileException(String message) {
+            super(message);
+        }
+    }
+
     public Dstore(int port, int cport, int timeout, String file_folder) throws UnknownHostException {
         this.port = port;
         this.cport = cport;
         this.timeout = timeout;
         this.file_folder = file_folder;
+        this.transfers = new TransferScheduler(localHost, timeout, Integer.getInteger("dstore.transfer.threads", 4),
+                Long.getLong("dstore.transfer.bandwidth", 0));
+        this.cache = CACHE_BYTES > 0 ? new ReadCache(CACHE_BYTES, CACHE_MAX_OBJECT) : null;
+    }
+
+    /**
+     * Whether filename is one the Dstore keeps its own files in its folder under, so a file stored by that name would
+     * overwrite or be mistaken for them: the manifest, the segments folder or a file still being received.
+     */
+    static boolean internalName(String filename) {
+        return filename.equals(Inventory.MANIFEST) || filename.equals(SegmentStore.FOLDER) || filename.startsWith(PARTIAL_PREFIX);
     }
 
     public static boolean malformed(String action, String[] message) {
@@ -26,6 +217,81 @@ public class Dstore {
             case "JOIN" -> {
                 return (message.length != 2);
             }
+            case Protocol.STORE_TOKEN -> {
+                try {
+                    return (message.length != 3 || Long.parseLong(message[2]) < 0 || internalName(message[1]));
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+            case Protocol.STORE_CHAIN_TOKEN -> {
+                // STORE_CHAIN name size port*: every port must be one a chain link can connect to
+                try {
+                    if (message.length < 3 || Long.parseLong(message[2]) < 0 || internalName(message[1])) {
+                        return true;
+                    }
+                    for (int i = 3; i < message.length; i++) {
+                        int port = Integer.parseInt(message[i]);
+                        if (port < 1 || port > 65535) {
+                            return true;
+                        }
+                    }
+                    return false;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+            case Protocol.REBALANCE_TOKEN -> {
+                try {
+                    int buffer = 2;
+                    for (int i = 0; i < Integer.parseInt(message[1]); i++) {
+                        buffer += 2 + Integer.parseInt(message[buffer + 1]);
+                    }
+                    return (message.length != buffer + 1 + Integer.parseInt(message[buffer]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    return true;
+                }
+            }
+            case Protocol.REMOVE_BATCH_TOKEN -> {
+                try {
+                    return (message.length != 2 + Integer.parseInt(message[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    return true;
+                }
+            }
+            case Protocol.LIST_DELTA_TOKEN -> {
+                try {
+                    Long.parseLong(message[1]);
+                    return (message.length != 2);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    return true;
+                }
+            }
+            case Protocol.REBUILD_SHARD_TOKEN -> {
+                try {
+                    int k = Integer.parseInt(message[3]);
+                    int m = Integer.parseInt(message[4]);
+                    int shard = Integer.parseInt(message[5]);
+                    return (message.length != 6 + k + m || Long.parseLong(message[2]) < 0 || shard < 0 || shard >= k + m);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    return true;
+                }
+            }
+            case Protocol.REBALANCE_STORE_TOKEN -> {
+                try {
+                    return (message.length != 4 || Long.parseLong(message[2]) < 0 || Long.parseLong(message[3]) < 0
+                            || internalName(message[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    return true;
+                }
+            }
+            case Protocol.LOAD_DATA_RANGE_TOKEN -> {
+                try {
+                    return (message.length != 4 || Long.parseLong(message[2]) < 0 || Long.parseLong(message[3]) < 0);
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
 
             case null, default -> {
                 return false;
@@ -64,15 +330,35 @@ public class Dstore {
         }
         logFile.createNewFile();
         logWriter = new FileOutputStream(logFile);
-        ServerSocket listener = new ServerSocket(port);
+        ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+        File outputFolder = new File(file_folder);
+        StringBuilder join = new StringBuilder(Protocol.JOIN_TOKEN + " " + port);
+        if (RESTART.equals("keep") && outputFolder.isDirectory()) {
+            long start = System.nanoTime();
+            int read = files.restore(outputFolder.toPath());
+            openSegments();
+            System.out.println("Kept " + files.keySet().size() + " files, " + read + " of them read for their checksum, in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+            for (String filename : files.keySet()) {
+                join.append(" ").append(filename).append(" ").append(files.get(filename)).append(" ").append(files.checksum(filename));
+            }
+            startManifestWriter();
+        } else {
+            if (outputFolder.listFiles() != null) {
+                clearFolder(outputFolder);
+            }
+            openSegments();
+        }
+        if (cache != null) {
+            startCacheReporter();
+        }
         Socket controller = new Socket(localHost, cport);
         controllerOut = new PrintWriter(controller.getOutputStream(), true);
-        controllerOut.println("JOIN " + port);
+        controllerOut.println(join);
         System.out.println("Joining controller");
         controllerIn = new BufferedReader(new InputStreamReader(controller.getInputStream()));
-        File outputFolder = new File(file_folder);
-        if (outputFolder.listFiles() != null) {
-            clearFolder(outputFolder);
+        if (SCRUB_BANDWIDTH > 0) {
+            new Scrubber(this, SCRUB_BANDWIDTH, SCRUB_INTERVAL).start();
         }
 
         new Thread(() -> {
@@ -87,17 +373,17 @@ public class Dstore {
 
         for (; ; ) {
             try {
-                final Socket client = listener.accept();
+                final SocketChannel client = listener.accept();
                 System.out.println("Accepted Connection");
                 new Thread(() -> {
                     try {
                         handleMessages(client);
                     } catch (IOException e) {
-                        throw new RuntimeException(e);
+                        System.out.println("Client connection failed: " + e.getMessage());
                     }
                 }).start();
 
-            } catch (SocketException e) {
+            } catch (IOException e) {
                 System.out.println("Can't Connect to Controller");
                 System.out.println("Shutting down DStore");
                 break;
@@ -105,146 +391,710 @@ public class Dstore {
         }
     }
 
+    /**
+     * Opens the segment store if packing is on, or if segments were left by a run that had it on, so the files in
+     * them are still served; they are added to the inventory.
+     */
+    private void openSegments() throws IOException {
+        Path folder = Path.of(file_folder);
+        if (PACK_THRESHOLD > 0 || Files.isDirectory(folder.resolve(SegmentStore.FOLDER))) {
+            Files.createDirectories(folder);
+            segments = new SegmentStore(folder, PACK_THRESHOLD, PACK_SEGMENT_SIZE, PACK_COMPACT_BELOW);
+            segments.listInto(files);
+            segments.startCompactor(PACK_COMPACT_INTERVAL);
+        }
+    }
+
+    /**
+     * A stored file opened for reading, wherever it is kept. The caller closes it.
+     */
+    Span open(String filename) throws IOException {
+        if (segments != null) {
+            Span packed = segments.open(filename);
+            if (packed != null) {
+                return packed;
+            }
+        }
+        FileChannel channel = FileChannel.open(Path.of(file_folder, filename), StandardOpenOption.READ);
+        return new Span(channel, 0, channel.size());
+    }
+
+    /**
+     * load for a LOAD_DATA or LOAD_DATA_RANGE, telling the Controller with LOAD_DONE once it has all been sent, so the
+     * Controller can time how long this Dstore takes to serve a load.
+     */
+    private boolean serve(String filename, long offset, long length, WritableByteChannel out) throws IOException {
+        if (!load(filename, offset, length, out)) {
+            return false;
+        }
+        String object = files.containsKey(filename) ? filename : filename + Protocol.COMPRESSED_NAME_SUFFIX;
+        controllerOut.println(Protocol.LOAD_DONE_TOKEN + " " + object);
+        return true;
+    }
+
+    /**
+     * Sends length bytes of a stored file, from offset, to a client, or the whole file if length is -1. A file in the
+     * read cache is sent from there; one that is not is read into it when it may be cached, and otherwise sent straight
+     * from disk. Returns false, having sent nothing, if the span does not lie inside the file.
+     *
+     * A file is checked against its CRC32C as it is read into the cache, which copies it anyway. One sent from disk is
+     * checked as it is sent, the whole of it even for a range, unless dstore.verify.load is false, in which case it is
+     * sent with transferTo, unchecked. A file that fails, or has gone from the disk while still listed, is handed to
+     * checkCorrupt and false is returned, with less than all of it sent. A file held only compressed goes to
+     * loadInflated instead.
+     */
+    private boolean load(String filename, long offset, long length, WritableByteChannel out) throws IOException {
+        if (!files.containsKey(filename) && files.containsKey(filename + Protocol.COMPRESSED_NAME_SUFFIX)) {
+            return loadInflated(filename + Protocol.COMPRESSED_NAME_SUFFIX, offset, length, out);
+        }
+        Long checksum = files.checksum(filename);
+        ReadCache.Entry cached = null;
+        try {
+            if (cache != null) {
+                long stamp = cache.stamp(filename);
+                cached = cache.get(filename);
+                if (cached == null) {
+                    try (Span file = open(filename)) {
+                        cached = cache.fill(filename, file, stamp, checksum == null ? -1 : checksum);
+                        if (cached == null) {
+                            return send(file, offset, length, VERIFY_LOADS ? checksum : null, out);
+                        }
+                    }
+                }
+            } else {
+                try (Span file = open(filename)) {
+                    return send(file, offset, length, VERIFY_LOADS ? checksum : null, out);
+                }
+            }
+        } catch (CorruptFileException | NoSuchFileException e) {
+            checkCorrupt(filename);
+            return false;
+        }
+        try {
+            if (!inside(offset, length, cached.size())) {
+                return false;
+            }
+            cache.send(cached, offset, length < 0 ? cached.size() - offset : length, out);
+            return true;
+        } finally {
+            cache.release(cached);
+        }
+    }
+
+    private static boolean send(Span file, long offset, long length, Long checksum, WritableByteChannel out) throws IOException {
+        if (!inside(offset, length, file.length())) {
+            return false;
+        }
+        if (checksum != null) {
+            file.sendChecked(offset, length < 0 ? file.length() - offset : length, checksum, CHECK_BUFFER.get(),
+                    CHECK_REST_BUFFER.get(), out);
+        } else {
+            file.send(offset, length < 0 ? file.length() - offset : length, out);
+        }
+        return true;
+    }
+
+    /**
+     * Whether length bytes from offset, or the rest of the file if length is -1, lie inside a file of size bytes.
+     * Nothing is added, so a huge offset and length can't overflow past the check.
+     */
+    private static boolean inside(long offset, long length, long size) {
+        return offset <= size && length <= size - offset;
+    }
+
+    /**
+     * True if filename is held here, either as it is or as its compressed copy.
+     */
+    private boolean holds(String filename) {
+        return files.containsKey(filename) || files.containsKey(filename + Protocol.COMPRESSED_NAME_SUFFIX);
+    }
+
+    /**
+     * Sends length bytes of a file held only as its compressed copy, from offset, or all of it if length is -1,
+     * inflating it on the way for a client that asked for it by its plain name. The compressed copy is not cached
+     * and, beyond the zlib check, not verified; one that fails to inflate is handed to checkCorrupt. Returns false if
+     * the span does not lie inside the file, with the part of it that does sent.
+     */
+    private boolean loadInflated(String object, long offset, long length, WritableByteChannel out) throws IOException {
+        try (Span file = open(object)) {
+            return file.sendInflated(offset, length, CHECK_BUFFER.get(), INFLATE_BUFFER.get(), out);
+        } catch (CorruptFileException | NoSuchFileException e) {
+            checkCorrupt(object);
+            return false;
+        }
+    }
+
+    /**
+     * Reads a stored file that failed a check once more, in case it was only being replaced, and if it still does not
+     * match its CRC32C deletes it and reports it CORRUPT to the Controller, which has it copied back from a replica
+     * that is still good. Returns true if the file was corrupt.
+     */
+    boolean checkCorrupt(String filename) {
+        Long checksum = files.checksum(filename);
+        if (checksum == null) {
+            return false;
+        }
+        String problem;
+        try (Span file = open(filename)) {
+            if (file.checksum(CHECK_BUFFER.get(), null) == checksum) {
+                return false;
+            }
+            problem = "does not match its checksum";
+        } catch (IOException e) {
+            problem = "can't be read: " + e.getMessage();
+        }
+        // a file replaced since it was read changes its checksum in the same step, under the same lock, and a file
+        // removed since is no longer listed
+        synchronized (files) {
+            if (!checksum.equals(files.checksum(filename))) {
+                return false;
+            }
+            delete(filename);
+            files.remove(filename);
+        }
+        System.out.println("Stored file " + filename + " " + problem + "; removed it");
+        controllerOut.println(Protocol.CORRUPT_TOKEN + " " + filename);
+        return true;
+    }
+
+    /**
+     * Deletes a stored file from wherever it is kept. Returns false if it could not be deleted.
+     */
+    private boolean delete(String filename) {
+        if (cache != null) {
+            cache.invalidate(filename);
+        }
+        boolean packed;
+        try {
+            packed = segments != null && segments.remove(filename);
+        } catch (IOException e) {
+            System.out.println("Couldn't remove " + filename + ": " + e.getMessage());
+            return false;
+        }
+        return new File(file_folder, filename).delete() || packed;
+    }
+
+    /**
+     * Saves the manifest whenever the inventory has changed, every MANIFEST_INTERVAL ms and once more on the way out,
+     * so a restart only has to read the files stored since the last save.
+     */
+    private void startManifestWriter() {
+        Path folder = Path.of(file_folder);
+        Runnable save = () -> {
+            try {
+                files.save(folder);
+            } catch (IOException e) {
+                System.out.println("Couldn't save the manifest: " + e.getMessage());
+            }
+        };
+        Thread.ofPlatform().name("manifest").daemon().start(() -> {
+            long saved = -1;
+            while (true) {
+                try {
+                    Thread.sleep(MANIFEST_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long version = files.version();
+                if (version != saved) {
+                    save.run();
+                    saved = version;
+                }
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(save));
+    }
+
+    /**
+     * Logs the read cache's hit ratio every CACHE_REPORT_INTERVAL ms in which there were loads.
+     */
+    private void startCacheReporter() {
+        Thread.ofPlatform().name("cache-report").daemon().start(() -> {
+            long reported = 0;
+            while (true) {
+                try {
+                    Thread.sleep(CACHE_REPORT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long loads = cache.loads();
+                if (loads != reported) {
+                    System.out.println(cache.stats());
+                    reported = loads;
+                }
+            }
+        });
+    }
+
     private void handleControllerMessages() throws IOException {
         String line;
-        while (true) {
-            if ((line = controllerIn.readLine()) != null) {
-                String[] message = line.split(" ");
-                switch (message[0]) {
-                    case Protocol.REMOVE_TOKEN -> {
-                        if (malformed(Protocol.REMOVE_TOKEN, message)) {
-                            logWriter.write((new Date() + ": " + line + "\n").getBytes());
+        while ((line = controllerIn.readLine()) != null) {
+            String[] message = line.split(" ");
+            switch (message[0]) {
+                case Protocol.REMOVE_TOKEN -> {
+                    if (malformed(Protocol.REMOVE_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        System.out.println("Removing File: " + message[1]);
+                        if (files.containsKey(message[1])) {
+                             if (delete(message[1])) {
+                                 files.remove(message[1]);
+                                 controllerOut.println(Protocol.REMOVE_ACK_TOKEN + " " + message[1]);
+                                 System.out.println("File Removed");
+                             }
                         } else {
-                            System.out.println("Removing File: " + message[1]);
-                            if (files.containsKey(message[1])) {
-                                File file = new File(file_folder, message[1]);
-                                 if (file.delete()) {
-                                     files.remove(message[1]);
-                                     controllerOut.println(Protocol.REMOVE_ACK_TOKEN + " " + message[1]);
-                                     System.out.println("File Removed");
-                                 }
-                            } else {
-                                controllerOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + ": " + message[1]);
-                                System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + ": " + message[1]);
-                            }
+                            controllerOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + message[1]);
+                            System.out.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + ": " + message[1]);
                         }
                     }
-                    case Protocol.LIST_TOKEN -> {
-                        if (malformed(Protocol.LIST_TOKEN, message)) {
-                            logWriter.write((new Date() + ": " + line + "\n").getBytes());
-                        } else {
-                            System.out.println("Received List Message");
-                            StringBuilder list = new StringBuilder(Protocol.LIST_TOKEN);
-                            for (String filename : files.keySet()) {
-                                list.append(" ").append(filename);
+                }
+                case Protocol.REMOVE_BATCH_TOKEN -> {
+                    if (malformed(Protocol.REMOVE_BATCH_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        // one reply for the whole batch, naming every file that is gone; one that could not be
+                        // deleted is left out and the Controller gives up on it when its timeout runs out
+                        StringBuilder removed = new StringBuilder(Protocol.REMOVE_BATCH_ACK_TOKEN);
+                        for (int i = 2; i < message.length; i++) {
+                            if (!files.containsKey(message[i]) || delete(message[i])) {
+                                files.remove(message[i]);
+                                removed.append(" ").append(message[i]);
                             }
-                            System.out.println("Sending Listed Message");
-                            controllerOut.println(list);
                         }
+                        System.out.println("Removed a batch of " + message[1] + " files");
+                        controllerOut.println(removed);
                     }
-                    case Protocol.REBALANCE_TOKEN  -> {
-                        System.out.println("Rebalancing");
-                        System.out.println("Message: " + Arrays.toString(message));
-                        int buffer = 2;
-                        for (int i = 0; i < Integer.parseInt(message[1]); i++) {
-                            String file = message[buffer];
-                            buffer++;
-                            int stores = Integer.parseInt(message[buffer]);
-                            for (int j = 0; j < stores; j++) {
-                                buffer++;
-                                Socket dstoreToSend = new Socket(InetAddress.getLocalHost(), Integer.parseInt(message[buffer]));
-                                BufferedReader dStoreIn = new BufferedReader(new InputStreamReader(dstoreToSend.getInputStream()));
-                                PrintWriter dStoreOut = new PrintWriter(dstoreToSend.getOutputStream(), true);
-                                OutputStream fileOut = new BufferedOutputStream(dstoreToSend.getOutputStream());
-                                System.out.println("Sending " + file + " to Dstore " + message[buffer]);
-                                dStoreOut.println(Protocol.REBALANCE_STORE_TOKEN + " " + file + " " + files.get(file));
-                                dstoreToSend.setSoTimeout(timeout);
-                                String ack = dStoreIn.readLine();
-                                if (Objects.equals(ack, Protocol.ACK_TOKEN)) {
-                                    FileInputStream newFileIn = new FileInputStream(new File(file_folder, file));
-                                    byte[] fileContent = newFileIn.readNBytes(Integer.parseInt(files.get(file)));
-                                    fileOut.write(fileContent);
-                                }
-                            }
-                            buffer++;
-                        }
-                        int stores = Integer.parseInt(message[buffer]);
-                        for (int i = 0; i < stores; i++) {
-                            buffer++;
-                            files.remove(message[buffer]);
+                }
+                case Protocol.LIST_TOKEN -> {
+                    if (malformed(Protocol.LIST_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        System.out.println("Received List Message");
+                        StringBuilder list = new StringBuilder(Protocol.LIST_TOKEN);
+                        for (String filename : files.keySet()) {
+                            list.append(" ").append(filename);
                         }
+                        System.out.println("Sending Listed Message");
+                        controllerOut.println(list);
+                    }
+                }
+                case Protocol.LIST_DELTA_TOKEN -> {
+                    if (malformed(Protocol.LIST_DELTA_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        controllerOut.println(files.delta(Long.parseLong(message[1])));
+                    }
+                }
+                case Protocol.REBALANCE_TOKEN  -> {
+                    if (malformed(Protocol.REBALANCE_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        rebalance(message);
+                    }
+                }
+                case Protocol.REBUILD_SHARD_TOKEN -> {
+                    if (malformed(Protocol.REBUILD_SHARD_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        // reading k shards takes a while, so it must not hold up the Controller's other messages
+                        new Thread(() -> rebuildShard(message)).start();
+                    }
+                }
+            }
+        }
+        throw new EOFException("Controller closed the connection");
+    }
+
+    /**
+     * Carries out REBALANCE count (file n port...)* count file...: hands the sends to the transfer scheduler and, once
+     * every one has gone through, deletes the files to remove and reports REBALANCE_COMPLETE. This runs off the
+     * Controller's thread so the Controller's other requests are answered meanwhile. If any send fails nothing is
+     * removed and no completion is sent, and the Controller keeps its old allocation.
+     */
+    private void rebalance(String[] message) {
+        Map<String, List<Integer>> sends = new LinkedHashMap<>();
+        int buffer = 2;
+        for (int i = 0; i < Integer.parseInt(message[1]); i++) {
+            List<Integer> ports = new ArrayList<>();
+            for (int j = 0; j < Integer.parseInt(message[buffer + 1]); j++) {
+                ports.add(Integer.parseInt(message[buffer + 2 + j]));
+            }
+            sends.put(message[buffer], ports);
+            buffer += 2 + ports.size();
+        }
+        List<String> removes = Arrays.asList(message).subList(buffer + 1, message.length);
+        System.out.println("Rebalancing: " + sends.size() + " files to send, " + removes.size() + " to remove");
+        transfers.sendAll(sends, this).whenComplete((done, failure) -> {
+            if (failure != null) {
+                System.out.println("Rebalance failed: " + failure.getCause().getMessage());
+                return;
+            }
+            for (String file : removes) {
+                delete(file);
+                files.remove(file);
+            }
+            controllerOut.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+            System.out.println("Rebalance complete");
+        });
+    }
 
-                        controllerOut.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+    /**
+     * Sends a whole file to the channel straight from the page cache (sendfile on Linux), so a load never copies the
+     * file through the heap however large it is.
+     */
+    static long sendFile(File file, WritableByteChannel out) throws IOException {
+        return sendRange(file, 0, file.length(), out);
+    }
+
+    /**
+     * Sends length bytes of a file, starting at offset, the same way as sendFile. The caller checks the span lies
+     * inside the file.
+     */
+    static long sendRange(File file, long offset, long length, WritableByteChannel out) throws IOException {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return transfer(source, offset, length, out);
+        }
+    }
+
+    private static long transfer(FileChannel source, long position, long length, WritableByteChannel out) throws IOException {
+        long sent = 0;
+        while (sent < length) {
+            long n = source.transferTo(position + sent, length - sent, out);
+            if (n == 0 && position + sent >= source.size()) {
+                throw new EOFException("Stored data ends before byte " + (position + length));
+            }
+            sent += n;
+        }
+        return sent;
+    }
+
+    /**
+     * Streams exactly size bytes from the socket into the named file through one fixed-size buffer, so memory use does
+     * not depend on the file size. The bytes land in a temporary file that is renamed over the target only once
+     * complete, so a failed upload never leaves a partial file under the real name.
+     * The socket is read through its stream rather than its channel so that the SO_TIMEOUT set by the caller applies.
+     * If forward is not null every chunk is also passed on to it before being written locally; a broken forward link
+     * is dropped without failing the local copy. A file small enough to be packed is read whole into memory instead and
+     * appended to a segment. Either way a copy kept the other way, and any cached copy, is dropped.
+     * If expected is not -1 the file must match it as its CRC32C, or it is thrown away and CorruptFileException
+     * thrown. The file is added to the inventory and its CRC32C returned.
+     */
+    long receiveFile(InputStream in, String filename, long size, OutputStream forward, long expected) throws IOException {
+        Path folder = Path.of(file_folder);
+        boolean packed = segments != null && segments.packs(size);
+        Path partial = packed ? null : Files.createTempFile(folder, PARTIAL_PREFIX, ".part");
+        byte[] buffer = new byte[packed ? (int) size : TRANSFER_BUFFER];
+        CRC32C checksum = new CRC32C();
+        // a content object is named after its SHA-256, so a client can't pass off other data as content already stored
+        MessageDigest content = filename.startsWith(Protocol.CONTENT_NAME_PREFIX) ? sha256() : null;
+        try (FileChannel out = packed ? null : FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int at = packed ? (int) (size - remaining) : 0;
+                int read = in.read(buffer, at, (int) Math.min(buffer.length - at, remaining));
+                if (read < 0) {
+                    throw new EOFException("Connection closed with " + remaining + " bytes of " + filename + " left");
+                }
+                if (forward != null) {
+                    try {
+                        forward.write(buffer, at, read);
+                    } catch (IOException e) {
+                        System.out.println("Stopped forwarding " + filename + ": " + e.getMessage());
+                        forward = null;
+                    }
+                }
+                checksum.update(buffer, at, read);
+                if (content != null) {
+                    content.update(buffer, at, read);
+                }
+                if (out != null) {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, at, read);
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
                     }
                 }
+                remaining -= read;
+            }
+            if (forward != null) {
+                forward.flush();
             }
+            if (expected >= 0 && checksum.getValue() != expected) {
+                throw new CorruptFileException("Received " + filename + " does not match its checksum");
+            }
+            if (content != null && !filename.equals(Protocol.CONTENT_NAME_PREFIX + HexFormat.of().formatHex(content.digest()))) {
+                throw new CorruptFileException("Received " + filename + " does not match its SHA-256");
+            }
+        } catch (IOException e) {
+            if (partial != null) {
+                Files.deleteIfExists(partial);
+            }
+            throw e;
+        }
+        // checkCorrupt must never see the new data with the old checksum, or the old data with the new one
+        synchronized (files) {
+            if (packed) {
+                segments.put(filename, buffer, buffer.length, checksum.getValue());
+                Files.deleteIfExists(folder.resolve(filename));
+            } else {
+                Files.move(partial, folder.resolve(filename), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (segments != null) {
+                    segments.remove(filename);
+                }
+            }
+            files.put(filename, String.valueOf(size), checksum.getValue());
+        }
+        if (cache != null) {
+            cache.invalidate(filename);
+        }
+        return checksum.getValue();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to have it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Serves REBUILD_SHARD name size k m index ports...: reads k of the file's other shards from their Dstores, decodes
+     * the lost one stripe by stripe into a temporary file and acknowledges it to the Controller like a stored file.
+     */
+    private void rebuildShard(String[] message) {
+        String name = message[1];
+        int k = Integer.parseInt(message[3]);
+        int m = Integer.parseInt(message[4]);
+        int shard = Integer.parseInt(message[5]);
+        String object = name + Protocol.SHARD_NAME_SEPARATOR + shard;
+        long shardSize = ReedSolomon.shardSize(Long.parseLong(message[2]), k);
+        String[] ports = Arrays.copyOfRange(message, 6, message.length);
+        ports[shard] = "-";
+        System.out.println("Rebuilding shard " + object);
+        Path folder = Path.of(file_folder);
+        Path partial = null;
+        try (ShardReader reader = new ShardReader(name, new ReedSolomon(k, m), shardSize, ports, timeout, shard >= k)) {
+            partial = Files.createTempFile(folder, PARTIAL_PREFIX, ".part");
+            CRC32C checksum = new CRC32C();
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                for (long done = 0; done < shardSize; ) {
+                    int length = (int) Math.min(ShardReader.STRIPE, shardSize - done);
+                    reader.next(length);
+                    checksum.update(reader.shards[shard], 0, length);
+                    ByteBuffer stripe = ByteBuffer.wrap(reader.shards[shard], 0, length);
+                    while (stripe.hasRemaining()) {
+                        out.write(stripe);
+                    }
+                    done += length;
+                }
+            }
+            synchronized (files) {
+                Files.move(partial, folder.resolve(object), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (segments != null) {
+                    segments.remove(object);
+                }
+                files.put(object, String.valueOf(shardSize), checksum.getValue());
+            }
+            if (cache != null) {
+                cache.invalidate(object);
+            }
+            controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + object + " " + checksum.getValue());
+            System.out.println("Rebuilt shard " + object);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't rebuild shard " + object + ": " + e.getMessage());
+            try {
+                if (partial != null) {
+                    Files.deleteIfExists(partial);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Opens the next hop of a STORE_CHAIN and waits for its ACK, which it only sends once the rest of the chain behind
+     * it is ready as well. Returns null at the tail of the chain.
+     */
+    private Socket openChainLink(String[] message) throws IOException {
+        if (message.length == 3) {
+            return null;
+        }
+        Socket next = new Socket(localHost, Integer.parseInt(message[3]));
+        next.setSoTimeout(timeout);
+        StringBuilder forward = new StringBuilder(Protocol.STORE_CHAIN_TOKEN + " " + message[1] + " " + message[2]);
+        for (int i = 4; i < message.length; i++) {
+            forward.append(" ").append(message[i]);
         }
+        new PrintWriter(next.getOutputStream(), true).println(forward);
+        String ack = new BufferedReader(new InputStreamReader(next.getInputStream())).readLine();
+        if (!Objects.equals(ack, Protocol.ACK_TOKEN)) {
+            next.close();
+            throw new IOException("Dstore " + message[3] + " refused chained store of " + message[1]);
+        }
+        return next;
     }
 
-    public void handleMessages(Socket client) throws IOException {
+    public void handleMessages(SocketChannel channel) throws IOException {
+        Socket client = channel.socket();
         BufferedReader messageIn = new BufferedReader(new InputStreamReader(client.getInputStream()));
         PrintWriter messageOut = new PrintWriter(client.getOutputStream(), true);
         InputStream fileIn = client.getInputStream();
-        OutputStream clientOut = client.getOutputStream();
         String line;
-        while (true) {
-            if ((line = messageIn.readLine()) != null) {
-                String[] message = line.split(" ");
-                switch (message[0]) {
-                    case Protocol.STORE_TOKEN -> {
-                        if (malformed(Protocol.STORE_TOKEN, message)) {
-                            logWriter.write((new Date() + ": " + line + "\n").getBytes());
-                        } else {
-                            System.out.println("Storing file: " + message[1]);
+        while ((line = messageIn.readLine()) != null) {
+            if (line.equals(Wire.HELLO)) {
+                // the peer waits for this answer before its first frame, so messageIn holds nothing more
+                messageOut.println(Wire.HELLO);
+                handleFrames(channel);
+                return;
+            }
+            String[] message = line.split(" ");
+            switch (message[0]) {
+                case Protocol.STORE_TOKEN -> {
+                    if (malformed(Protocol.STORE_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        System.out.println("Storing file: " + message[1]);
+                        messageOut.println(Protocol.ACK_TOKEN);
+                        client.setSoTimeout(timeout);
+                        long checksum = receiveFile(fileIn, message[1], Long.parseLong(message[2]), null, -1);
+                        controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + message[1] + " " + checksum);
+                        System.out.println("File Stored");
+                    }
+                }
+                case Protocol.STORE_CHAIN_TOKEN -> {
+                    if (malformed(Protocol.STORE_CHAIN_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        System.out.println("Storing file in chain: " + message[1]);
+                        client.setSoTimeout(timeout);
+                        long checksum;
+                        try (Socket next = openChainLink(message)) {
                             messageOut.println(Protocol.ACK_TOKEN);
-                            client.setSoTimeout(timeout);
-                            byte[] fileData = fileIn.readNBytes(Integer.parseInt(message[2]));
-                            File outputFile = new File(file_folder, message[1]);
-                            FileOutputStream fileOut = new FileOutputStream(outputFile);
-                            fileOut.write(fileData);
-                            fileOut.close();
-                            files.put(message[1], message[2]);
-                            controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + message[1]);
-                            System.out.println("File Stored");
+                            checksum = receiveFile(fileIn, message[1], Long.parseLong(message[2]), next == null ? null : next.getOutputStream(), -1);
                         }
+                        controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + message[1] + " " + checksum);
+                        System.out.println("File Stored");
                     }
-                    case Protocol.LOAD_DATA_TOKEN -> {
-                        if (malformed(Protocol.LOAD_DATA_TOKEN, message)) {
-                            logWriter.write((new Date() + ": " + line + "\n").getBytes());
-                        } else {
-                            if (files.containsKey(message[1])) {
-                                System.out.println("Loading file: " + message[1]);
-                                File file = new File(file_folder, message[1]);
-                                FileInputStream fileStream = new FileInputStream(file);
-                                System.out.println("Getting file content");
-                                byte[] fileContent = fileStream.readAllBytes();
-                                System.out.println("Sending file content");
-                                clientOut.write(fileContent);
-                                System.out.println("File content sent");
-                                fileStream.close();
-                            } else {
+                }
+                case Protocol.LOAD_DATA_TOKEN -> {
+                    if (malformed(Protocol.LOAD_DATA_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        if (holds(message[1])) {
+                            System.out.println("Loading file: " + message[1]);
+                            System.out.println("Sending file content");
+                            if (!serve(message[1], 0, -1, channel)) {
                                 client.close();
+                                return;
                             }
+                            System.out.println("File content sent");
+                        } else {
+                            client.close();
+                            return;
                         }
                     }
-                    case Protocol.REBALANCE_STORE_TOKEN -> {
-                        if (malformed(Protocol.REBALANCE_STORE_TOKEN, message)) {
-                            logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                }
+                case Protocol.LOAD_DATA_RANGE_TOKEN -> {
+                    if (malformed(Protocol.LOAD_DATA_RANGE_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        long offset = Long.parseLong(message[2]);
+                        long length = Long.parseLong(message[3]);
+                        if (holds(message[1]) && serve(message[1], offset, length, channel)) {
+                            System.out.println("Loaded " + length + " bytes of " + message[1] + " from " + offset);
                         } else {
-                            messageOut.println("ACK");
-                            client.setSoTimeout(timeout);
-                            byte[] content = fileIn.readNBytes(Integer.parseInt(message[2]));
-                            File outputFile = new File(file_folder, message[1]);
-                            FileOutputStream fileOut = new FileOutputStream(outputFile);
-                            fileOut.write(content);
-                            fileOut.close();
-                            files.put(message[1], message[2]);
+                            client.close();
+                            return;
                         }
                     }
-                    case null, default -> logWriter.write((new Date() + ": " + line + "\n").getBytes());
                 }
+                case Protocol.REBALANCE_STORE_TOKEN -> {
+                    if (malformed(Protocol.REBALANCE_STORE_TOKEN, message)) {
+                        logWriter.write((new Date() + ": " + line + "\n").getBytes());
+                    } else {
+                        messageOut.println("ACK");
+                        client.setSoTimeout(timeout);
+                        try {
+                            receiveFile(fileIn, message[1], Long.parseLong(message[2]), null, Long.parseLong(message[3]));
+                        } catch (CorruptFileException e) {
+                            System.out.println(e.getMessage());
+                            client.close();
+                            return;
+                        }
+                        // the sender pools this connection, so it may sit idle until the next rebalance
+                        client.setSoTimeout(0);
+                    }
+                }
+                case null, default -> logWriter.write((new Date() + ": " + line + "\n").getBytes());
             }
         }
+        client.close();
+    }
 
+    /**
+     * handleMessages for a connection that has switched to binary frames. Sizes and offsets are read straight from the
+     * frame; only the filename becomes a String, once it is known to be a single word. File data still follows a frame
+     * raw, as it follows a line.
+     */
+    private void handleFrames(SocketChannel channel) throws IOException {
+        Socket client = channel.socket();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream(), TRANSFER_BUFFER));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        Wire.Frame frame = new Wire.Frame();
+        byte store = Wire.opcode(Protocol.STORE_TOKEN);
+        byte rebalanceStore = Wire.opcode(Protocol.REBALANCE_STORE_TOKEN);
+        byte loadData = Wire.opcode(Protocol.LOAD_DATA_TOKEN);
+        byte loadDataRange = Wire.opcode(Protocol.LOAD_DATA_RANGE_TOKEN);
+        byte ack = Wire.opcode(Protocol.ACK_TOKEN);
+        while (frame.read(in)) {
+            byte opcode = frame.opcode();
+            // a REBALANCE_STORE gives the file's checksum as a third field
+            if (((opcode == store && frame.fields() == 2) || (opcode == rebalanceStore && frame.fields() == 3 && frame.number(2) >= 0))
+                    && frame.number(1) >= 0 && frame.word(0) && !internalName(frame.string(0))) {
+                String filename = frame.string(0);
+                long size = frame.number(1);
+                Wire.write(out, ack, frame.request());
+                out.flush();
+                client.setSoTimeout(timeout);
+                long checksum;
+                try {
+                    checksum = receiveFile(in, filename, size, null, opcode == rebalanceStore ? frame.number(2) : -1);
+                } catch (CorruptFileException e) {
+                    System.out.println(e.getMessage());
+                    break;
+                }
+                if (opcode == store) {
+                    controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + filename + " " + checksum);
+                } else {
+                    // the sender waits to hear the file arrived intact; a corrupt one gets the connection closed instead
+                    Wire.write(out, ack, frame.request());
+                    out.flush();
+                }
+                // a peer pools the connection between REBALANCE_STOREs, so it may sit idle a while
+                client.setSoTimeout(0);
+            } else if (opcode == loadData && frame.fields() == 1 && frame.word(0)) {
+                String filename = frame.string(0);
+                if (!holds(filename)) {
+                    break;
+                }
+                if (!serve(filename, 0, -1, channel)) {
+                    break;
+                }
+            } else if (opcode == loadDataRange && frame.fields() == 3 && frame.word(0) && frame.number(1) >= 0 && frame.number(2) >= 0) {
+                String filename = frame.string(0);
+                long offset = frame.number(1);
+                long length = frame.number(2);
+                if (!holds(filename)) {
+                    break;
+                }
+                if (!serve(filename, offset, length, channel)) {
+                    break;
+                }
+            } else {
+                logWriter.write((new Date() + ": " + String.join(" ", frame.words()) + "\n").getBytes());
+            }
+        }
+        client.close();
     }
 }
@@ -0,0 +1,155 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * The Controller's end of one Dstore connection. A single reader thread parses every line the Dstore sends and
+ * completes the pending operation it answers, so operations never read from the socket themselves.
+ */
+public class DstoreChannel {
+    final int port;
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+    private final Map<String, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    // the objects the Dstore last reported holding, kept up to date from LIST_DELTA replies by the rebalance thread
+    final Set<String> inventory = new HashSet<>();
+    // the Dstore's inventory version that inventory reflects, or -1 before the first full listing
+    long inventoryVersion = -1;
+
+    public DstoreChannel(int port, Socket socket, BufferedReader in, PrintWriter out) {
+        this.port = port;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+    }
+
+    private static String key(String op, String filename) {
+        return op + " " + filename;
+    }
+
+    /**
+     * Registers interest in a reply before the request that triggers it is sent. The future completes with the
+     * line the Dstore sent, or exceptionally if the connection fails first.
+     */
+    public CompletableFuture<String> expect(String op, String filename) {
+        return pending.computeIfAbsent(key(op, filename), k -> new CompletableFuture<>());
+    }
+
+    /**
+     * Drops a registration whose reply is no longer wanted, e.g. after a timeout.
+     */
+    public void forget(String op, String filename) {
+        pending.remove(key(op, filename));
+    }
+
+    /**
+     * Applies a LIST_DELTA reply to inventory and returns the objects it added and still holds. A FULL reply replaces
+     * inventory, and any difference from what the deltas had built up is logged, since it means a change went
+     * unreported.
+     */
+    public Collection<String> applyInventory(String reply) {
+        String[] message = reply.split(" ");
+        Set<String> added = new LinkedHashSet<>();
+        if (message[2].equals("FULL")) {
+            Set<String> listed = new HashSet<>(List.of(message).subList(3, message.length));
+            if (inventoryVersion >= 0 && !listed.equals(inventory)) {
+                System.out.println("Inventory of Dstore " + port + " had drifted; resynchronised from a full listing");
+            }
+            for (String object : listed) {
+                if (!inventory.contains(object)) {
+                    added.add(object);
+                }
+            }
+            inventory.clear();
+            inventory.addAll(listed);
+        } else {
+            for (int i = 3; i < message.length; i++) {
+                String object = message[i].substring(1);
+                if (message[i].charAt(0) == '+') {
+                    if (inventory.add(object)) {
+                        added.add(object);
+                    }
+                } else {
+                    inventory.remove(object);
+                    added.remove(object);
+                }
+            }
+        }
+        inventoryVersion = Long.parseLong(message[1]);
+        return added;
+    }
+
+    public void send(String line) {
+        out.println(line);
+    }
+
+    /**
+     * Starts the reader. onFailure runs once when the connection closes or breaks; onCorrupt runs, on the reader
+     * thread, for each object the Dstore reports CORRUPT, and onLoaded for each it reports LOAD_DONE.
+     */
+    public void start(ThreadFactory threads, Consumer<DstoreChannel> onFailure, BiConsumer<DstoreChannel, String> onCorrupt,
+                      BiConsumer<DstoreChannel, String> onLoaded) {
+        threads.newThread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    dispatch(line, onCorrupt, onLoaded);
+                }
+            } catch (IOException e) {
+                System.out.println("Connection to Dstore " + port + " failed: " + e.getMessage());
+            }
+            IOException closed = new IOException("Dstore " + port + " disconnected");
+            pending.values().forEach(f -> f.completeExceptionally(closed));
+            pending.clear();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            onFailure.accept(this);
+        }).start();
+    }
+
+    private void dispatch(String line, BiConsumer<DstoreChannel, String> onCorrupt, BiConsumer<DstoreChannel, String> onLoaded) {
+        String[] message = line.split(" ", 2);
+        String argument = message.length > 1 ? message[1] : "";
+        switch (message[0]) {
+            // followed by the CRC32C of what was stored
+            case Protocol.STORE_ACK_TOKEN -> complete(message[0], argument.split(" ", 2)[0], line);
+            case Protocol.REMOVE_ACK_TOKEN -> complete(message[0], argument, line);
+            case Protocol.CORRUPT_TOKEN -> onCorrupt.accept(this, argument);
+            case Protocol.LOAD_DONE_TOKEN -> onLoaded.accept(this, argument);
+            // a Dstore that no longer has the file has still done what REMOVE asked
+            case Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN -> complete(Protocol.REMOVE_ACK_TOKEN, argument, line);
+            // answers a REMOVE_BATCH as one REMOVE_ACK for each file it names
+            case Protocol.REMOVE_BATCH_ACK_TOKEN -> {
+                for (String filename : argument.isEmpty() ? new String[0] : argument.split(" ")) {
+                    complete(Protocol.REMOVE_ACK_TOKEN, filename, line);
+                }
+            }
+            case Protocol.LIST_TOKEN, Protocol.LIST_DELTA_TOKEN, Protocol.REBALANCE_COMPLETE_TOKEN -> complete(message[0], "", line);
+            case null, default -> System.out.println("Unexpected message from Dstore " + port + ": " + line);
+        }
+    }
+
+    private void complete(String op, String filename, String line) {
+        CompletableFuture<String> reply = pending.remove(key(op, filename));
+        if (reply == null) {
+            System.out.println("Unsolicited message from Dstore " + port + ": " + line);
+        } else {
+            reply.complete(line);
+        }
+    }
+}
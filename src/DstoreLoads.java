@@ -0,0 +1,101 @@
+import java.util.*;
+
+/**
+ * How much each Dstore holds, as a count of stored objects and of bytes, kept up to date as the Controller's index
+ * changes rather than recounted from it. The Dstores are also kept in a tree ordered by one of the two, so the
+ * least-loaded ones are found in O(log D) however many files are stored.
+ *
+ * Every method is synchronized: a placement reads and bumps several counters and must not interleave with another.
+ */
+public class DstoreLoads {
+    private final boolean byBytes;
+    private final Map<Integer, Long> files = new HashMap<>();
+    private final Map<Integer, Long> bytes = new HashMap<>();
+    private final TreeSet<Integer> order;
+
+    /**
+     * @param byBytes order Dstores by bytes stored rather than by number of objects
+     */
+    public DstoreLoads(boolean byBytes) {
+        this.byBytes = byBytes;
+        Comparator<Integer> byLoad = Comparator.comparingLong(this::weight);
+        this.order = new TreeSet<>(byLoad.thenComparing(Comparator.naturalOrder()));
+    }
+
+    private long weight(Integer port) {
+        return byBytes ? bytes.get(port) : files.get(port);
+    }
+
+    public synchronized void join(int port) {
+        leave(port);
+        files.put(port, 0L);
+        bytes.put(port, 0L);
+        order.add(port);
+    }
+
+    public synchronized void leave(int port) {
+        if (files.containsKey(port)) {
+            order.remove(port);
+            files.remove(port);
+            bytes.remove(port);
+        }
+    }
+
+    private void adjust(Integer port, long objects, long size) {
+        if (files.containsKey(port)) {
+            // out of the tree while its key changes
+            order.remove(port);
+            files.merge(port, objects, Long::sum);
+            bytes.merge(port, objects * size, Long::sum);
+            order.add(port);
+        }
+    }
+
+    /**
+     * Counts one object of size bytes on each of ports. Ports that are not Dstores any more are ignored.
+     */
+    public synchronized void add(Collection<Integer> ports, long size) {
+        for (Integer port : ports) {
+            adjust(port, 1, size);
+        }
+    }
+
+    public synchronized void remove(Collection<Integer> ports, long size) {
+        for (Integer port : ports) {
+            adjust(port, -1, size);
+        }
+    }
+
+    /**
+     * Counts an object of size bytes as moved from the before Dstores to the after ones.
+     */
+    public synchronized void move(Collection<Integer> before, Collection<Integer> after, long size) {
+        for (Integer port : before) {
+            if (!after.contains(port)) {
+                adjust(port, -1, size);
+            }
+        }
+        for (Integer port : after) {
+            if (!before.contains(port)) {
+                adjust(port, 1, size);
+            }
+        }
+    }
+
+    /**
+     * Picks the copies least-loaded Dstores for an object of size bytes and counts it on them straight away, so
+     * concurrent placements see each other. Returns null, counting nothing, if there are fewer than copies Dstores.
+     */
+    public synchronized List<Integer> place(int copies, long size) {
+        if (order.size() < copies) {
+            return null;
+        }
+        List<Integer> chosen = new ArrayList<>(copies);
+        Iterator<Integer> least = order.iterator();
+        for (int i = 0; i < copies; i++) {
+            chosen.add(least.next());
+        }
+        add(chosen, size);
+        return List.copyOf(chosen);
+    }
+}
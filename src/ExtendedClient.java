@@ -0,0 +1,1032 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A client for the protocol extensions that the provided client.jar does not speak. Like Client it keeps one text
+ * connection to the Controller and opens short-lived connections to Dstores for data.
+ */
+public class ExtendedClient implements Closeable {
+    private static final int PARALLEL_TRANSFERS = 8;
+    private static final int TRANSFER_BUFFER = 64 * 1024;
+    // how many recent times to first byte the hedge delay is worked out from, and how many it needs before it is
+    private static final int FIRST_BYTE_SAMPLES = 256;
+    private static final int MIN_FIRST_BYTE_SAMPLES = 20;
+
+    private final int cport;
+    private final int timeout;
+    private Socket controller;
+    private BufferedReader controllerIn;
+    private PrintWriter controllerOut;
+    // set once the Controller has agreed to binary frames; replies are then read as frames rather than lines
+    private DataInputStream frameIn;
+    private DataOutputStream frameOut;
+    private final Wire.Frame frame = new Wire.Frame();
+    private int nextRequest = 0;
+    // 0 unless hedge() has been called
+    private double hedgePercentile = 0;
+    private long initialHedgeDelay;
+    private final long[] firstBytes = new long[FIRST_BYTE_SAMPLES];
+    private long firstByteCount = 0;
+
+    public ExtendedClient(int cport, int timeout) {
+        this.cport = cport;
+        this.timeout = timeout;
+    }
+
+    public void connect() throws IOException {
+        controller = new Socket(InetAddress.getLoopbackAddress(), cport);
+        controller.setSoTimeout(timeout);
+        controllerIn = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+        controllerOut = new PrintWriter(controller.getOutputStream(), true);
+    }
+
+    /**
+     * Connects, and if binary is set asks the Controller for binary frames, staying on text if it does not answer.
+     */
+    public void connect(boolean binary) throws IOException {
+        connect();
+        if (binary && request(Wire.HELLO).toString().equals(Wire.HELLO)) {
+            frameIn = new DataInputStream(new BufferedInputStream(controller.getInputStream()));
+            frameOut = new DataOutputStream(new BufferedOutputStream(controller.getOutputStream()));
+        }
+    }
+
+    /**
+     * Hedges every load of a file stored whole from now on: if its data has not started arriving within the given
+     * percentile (0 to 100) of recent loads' times to first byte, a second replica is asked for and raced against the
+     * first. Until enough loads have been timed, initialDelay ms is waited instead. The Controller may refuse a hedge
+     * to keep the extra load down, in which case the first replica is simply waited for.
+     */
+    public void hedge(double percentile, long initialDelay) {
+        this.hedgePercentile = percentile;
+        this.initialHedgeDelay = initialDelay * 1_000_000;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (controller != null) {
+            controller.close();
+        }
+    }
+
+    /**
+     * Sends a message, its token first, and reads the reply. Over frames each word becomes a field as it is, so none
+     * is ever joined into a line and split again.
+     */
+    private Reply request(String... words) throws IOException {
+        if (frameOut != null) {
+            Wire.write(frameOut, ++nextRequest, words);
+            frameOut.flush();
+        } else {
+            controllerOut.println(String.join(" ", words));
+        }
+        return controllerReply();
+    }
+
+    private Reply controllerReply() throws IOException {
+        if (frameIn != null) {
+            if (!frame.read(frameIn)) {
+                throw new EOFException("Controller closed the connection");
+            }
+            if (frame.request() != nextRequest) {
+                throw new IOException("Reply to request " + frame.request() + " while waiting for " + nextRequest);
+            }
+            return new Reply(frame, null);
+        }
+        String reply = controllerIn.readLine();
+        if (reply == null) {
+            throw new EOFException("Controller closed the connection");
+        }
+        return new Reply(null, reply.split(" "));
+    }
+
+    /**
+     * A reply from the Controller, read a field at a time the same way whether it came as a frame or as a line. One
+     * read from a frame is only good until the next reply is read, as the frame is reused.
+     */
+    private record Reply(Wire.Frame frame, String[] words) {
+        String token() {
+            return frame != null ? Wire.token(frame.opcode()) : words[0];
+        }
+
+        boolean is(String token) {
+            return token.equals(token());
+        }
+
+        int fields() {
+            return frame != null ? frame.fields() : words.length - 1;
+        }
+
+        String string(int field) {
+            return frame != null ? frame.string(field) : words[field + 1];
+        }
+
+        /**
+         * The fields from the given one on.
+         */
+        String[] strings(int from) {
+            String[] strings = new String[fields() - from];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = string(from + i);
+            }
+            return strings;
+        }
+
+        /**
+         * A field that must be a non-negative decimal number.
+         */
+        long number(int field) throws IOException {
+            long number = -1;
+            if (frame != null) {
+                number = frame.number(field);
+            } else {
+                try {
+                    number = Long.parseLong(words[field + 1]);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            if (number < 0) {
+                throw new IOException("Expected a number in field " + field + " of: " + this);
+            }
+            return number;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(" ", frame != null ? frame.words() : words);
+        }
+    }
+
+    /**
+     * Checks that a reply starts with token, turning any other reply (usually an ERROR_ token) into an exception.
+     */
+    private static Reply expect(Reply reply, String token) throws IOException {
+        if (!reply.is(token)) {
+            throw new IOException("Expected " + token + " but got: " + reply);
+        }
+        return reply;
+    }
+
+    /**
+     * Splits a line from a Dstore that must start with token, turning any other line into an exception.
+     */
+    private static String[] expect(String line, String token) throws IOException {
+        String[] message = line.split(" ");
+        if (!message[0].equals(token)) {
+            throw new IOException("Expected " + token + " but got: " + line);
+        }
+        return message;
+    }
+
+    /**
+     * Reads one line straight from a Dstore stream without buffering past it, so the data that follows is untouched.
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("Dstore closed the connection");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    static void sendFile(File file, long offset, long length, SocketChannel out) throws IOException {
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < length) {
+                sent += source.transferTo(offset + sent, length - sent, out);
+            }
+        }
+    }
+
+    private SocketChannel openDstore(int port) throws IOException {
+        SocketChannel dstore = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        dstore.socket().setSoTimeout(timeout);
+        // a connection may carry many small requests in a row, which Nagle's algorithm would hold back
+        dstore.socket().setTcpNoDelay(true);
+        return dstore;
+    }
+
+    /**
+     * Uploads length bytes of file, from offset, as object to the chain of Dstores in ports.
+     */
+    private void uploadChain(File file, String object, long offset, long length, String[] ports) throws IOException {
+        StringBuilder chain = new StringBuilder(Protocol.STORE_CHAIN_TOKEN + " " + object + " " + length);
+        for (int i = 1; i < ports.length; i++) {
+            chain.append(" ").append(ports[i]);
+        }
+        try (SocketChannel dstore = openDstore(Integer.parseInt(ports[0]))) {
+            OutputStream out = dstore.socket().getOutputStream();
+            out.write((chain + "\n").getBytes());
+            expect(readLine(dstore.socket().getInputStream()), Protocol.ACK_TOKEN);
+            sendFile(file, offset, length, dstore);
+        }
+    }
+
+    /**
+     * Fetches length bytes of object from a Dstore and writes them into out at position.
+     */
+    private void fetch(int port, String object, long length, FileChannel out, long position) throws IOException {
+        try (SocketChannel dstore = openDstore(port)) {
+            dstore.socket().getOutputStream().write((Protocol.LOAD_DATA_TOKEN + " " + object + "\n").getBytes());
+            receive(dstore.socket().getInputStream(), port, object, length, out, position, null);
+        }
+    }
+
+    /**
+     * Copies exactly length bytes of object from a Dstore's stream into out at position, running firstBytes, unless it
+     * is null, once the first of them arrive.
+     */
+    private static void receive(InputStream in, int port, String object, long length, FileChannel out, long position,
+                                Runnable firstBytes) throws IOException {
+        byte[] buffer = new byte[TRANSFER_BUFFER];
+        long done = 0;
+        while (done < length) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - done));
+            if (read < 0) {
+                throw new EOFException("Dstore " + port + " sent " + done + " of " + length + " bytes of " + object);
+            }
+            if (done == 0 && firstBytes != null) {
+                firstBytes.run();
+            }
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+            while (chunk.hasRemaining()) {
+                done += out.write(chunk, position + done);
+            }
+        }
+    }
+
+    /**
+     * Fetches the compressed copy of a file, storedSize bytes, from a Dstore and inflates it into out, where it must
+     * come to size bytes.
+     */
+    private void fetchInflated(int port, String name, long size, long storedSize, FileChannel out) throws IOException {
+        String object = name + Protocol.COMPRESSED_NAME_SUFFIX;
+        try (SocketChannel dstore = openDstore(port)) {
+            dstore.socket().getOutputStream().write((Protocol.LOAD_DATA_TOKEN + " " + object + "\n").getBytes());
+            InputStream in = dstore.socket().getInputStream();
+            byte[] input = new byte[TRANSFER_BUFFER];
+            ByteBuffer output = ByteBuffer.allocate(TRANSFER_BUFFER);
+            Inflater inflater = new Inflater();
+            long received = 0;
+            long inflated = 0;
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        int read = received == storedSize ? -1 : in.read(input, 0, (int) Math.min(input.length, storedSize - received));
+                        if (read < 0) {
+                            throw new EOFException("Dstore " + port + " sent " + received + " of " + storedSize + " bytes of " + object);
+                        }
+                        received += read;
+                        inflater.setInput(input, 0, read);
+                    }
+                    inflater.inflate(output.clear());
+                    output.flip();
+                    while (output.hasRemaining()) {
+                        inflated += out.write(output, inflated);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Dstore " + port + " sent a damaged " + object + ": " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            if (inflated != size) {
+                throw new IOException(object + " from Dstore " + port + " inflated to " + inflated + " bytes, not " + size);
+            }
+        }
+    }
+
+    /**
+     * Reads exactly length bytes of object, from offset, off a Dstore into buffer at position.
+     */
+    private void fetchRange(int port, String object, long offset, int length, byte[] buffer, int position) throws IOException {
+        try (Socket dstore = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            dstore.setSoTimeout(timeout);
+            dstore.getOutputStream().write((Protocol.LOAD_DATA_RANGE_TOKEN + " " + object + " " + offset + " " + length + "\n").getBytes());
+            if (dstore.getInputStream().readNBytes(buffer, position, length) != length) {
+                throw new EOFException("Dstore " + port + " sent less than " + length + " bytes of " + object);
+            }
+        }
+    }
+
+    /**
+     * Runs every task on a small pool and rethrows the first failure once all have finished.
+     */
+    private static void runAll(List<Callable<Void>> tasks) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), PARALLEL_TRANSFERS)));
+        try {
+            runAll(tasks, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void runAll(List<Callable<Void>> tasks, ExecutorService pool) throws IOException {
+        List<Future<Void>> results = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            results.add(pool.submit(task));
+        }
+        IOException failure = null;
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stores a file with chain replication: the file is uploaded once, to the first Dstore, and each Dstore forwards
+     * it to the next while writing its own copy.
+     */
+    public void storeChained(File file) throws IOException {
+        String name = file.getName();
+        long size = file.length();
+        Reply reply = expect(request(Protocol.STORE_CHAIN_TOKEN, name, String.valueOf(size)), Protocol.STORE_TO_TOKEN);
+        uploadChain(file, name, 0, size, reply.strings(0));
+        expect(controllerReply(), Protocol.STORE_COMPLETE_TOKEN);
+    }
+
+    /**
+     * Stores a file compressed. It is deflated here, into a temporary file, and uploaded with chain replication under
+     * its compressed name; the Dstores keep and pass on the compressed bytes as they are. A file that deflating does
+     * not make smaller is stored as it is, with storeChained.
+     */
+    public void storeCompressed(File file) throws IOException {
+        String name = file.getName();
+        long size = file.length();
+        File deflated = File.createTempFile("deflate-", null);
+        try {
+            try (InputStream in = new FileInputStream(file);
+                 OutputStream out = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(deflated), TRANSFER_BUFFER))) {
+                in.transferTo(out);
+            }
+            long storedSize = deflated.length();
+            if (storedSize >= size) {
+                storeChained(file);
+                return;
+            }
+            Reply reply = expect(request(Protocol.STORE_COMPRESSED_TOKEN, name, String.valueOf(size), String.valueOf(storedSize)),
+                    Protocol.STORE_TO_TOKEN);
+            uploadChain(deflated, name + Protocol.COMPRESSED_NAME_SUFFIX, 0, storedSize, reply.strings(0));
+            expect(controllerReply(), Protocol.STORE_COMPLETE_TOKEN);
+        } finally {
+            deflated.delete();
+        }
+    }
+
+    /**
+     * Loads a file into target. A file stored compressed is fetched as its compressed bytes and inflated here, so no
+     * Dstore spends time inflating it and only the compressed bytes cross the network; the next replica is tried with
+     * RELOAD each time one fails. Any other file is loaded whole, as by a LOAD.
+     */
+    public void loadCompressed(String name, File target) throws IOException {
+        Reply reply = request(Protocol.LOAD_COMPRESSED_TOKEN, name);
+        try (FileChannel out = create(target)) {
+            if (reply.is(Protocol.LOAD_FROM_TOKEN)) {
+                loadWhole(name, reply, out);
+                return;
+            }
+            while (true) {
+                expect(reply, Protocol.LOAD_COMPRESSED_FROM_TOKEN);
+                int port = (int) reply.number(0);
+                long size = reply.number(1);
+                long storedSize = reply.number(2);
+                try {
+                    fetchInflated(port, name, size, storedSize, out);
+                    return;
+                } catch (IOException e) {
+                    reply = request(Protocol.RELOAD_TOKEN, name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a file deduplicated. Its SHA-256 goes with the request, and if a file of the same content and size is
+     * stored already the Controller answers STORE_COMPLETE at once and nothing is uploaded. Otherwise the file is
+     * uploaded with chain replication as its content object, for later files to share, or under its own name if the
+     * Controller answers STORE_TO because the same content is being stored or removed right now.
+     */
+    public void storeDeduplicated(File file) throws IOException {
+        String name = file.getName();
+        long size = file.length();
+        String hash = sha256(file);
+        Reply reply = request(Protocol.STORE_DEDUP_TOKEN, name, String.valueOf(size), hash);
+        if (reply.is(Protocol.STORE_COMPLETE_TOKEN)) {
+            return;
+        }
+        String object = name;
+        if (reply.is(Protocol.STORE_CONTENT_TO_TOKEN)) {
+            object = Protocol.CONTENT_NAME_PREFIX + hash;
+        } else {
+            expect(reply, Protocol.STORE_TO_TOKEN);
+        }
+        uploadChain(file, object, 0, size, reply.strings(0));
+        expect(controllerReply(), Protocol.STORE_COMPLETE_TOKEN);
+    }
+
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new DigestInputStream(new FileInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Loads a file into target, deduplicated or not. A deduplicated file is fetched as its content object, and the
+     * next replica is tried with RELOAD each time one fails; any other is loaded whole, as by a LOAD.
+     */
+    public void loadDeduplicated(String name, File target) throws IOException {
+        Reply reply = request(Protocol.LOAD_DEDUP_TOKEN, name);
+        try (FileChannel out = create(target)) {
+            if (reply.is(Protocol.LOAD_FROM_TOKEN)) {
+                loadWhole(name, reply, out);
+                return;
+            }
+            while (true) {
+                expect(reply, Protocol.LOAD_CONTENT_FROM_TOKEN);
+                int port = (int) reply.number(0);
+                long size = reply.number(1);
+                String object = reply.string(2);
+                try {
+                    fetch(port, object, size, out, 0);
+                    return;
+                } catch (IOException e) {
+                    reply = request(Protocol.RELOAD_TOKEN, name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a file that the Controller may split into chunks. Each chunk goes to its own chain of Dstores, several
+     * chunks at a time. Files under the Controller's threshold come back as a plain STORE_TO and are stored whole.
+     */
+    public void storeChunked(File file) throws IOException {
+        String name = file.getName();
+        long size = file.length();
+        Reply reply = request(Protocol.STORE_CHUNKED_TOKEN, name, String.valueOf(size));
+        if (reply.is(Protocol.STORE_TO_TOKEN)) {
+            uploadChain(file, name, 0, size, reply.strings(0));
+        } else {
+            expect(reply, Protocol.STORE_CHUNKS_TO_TOKEN);
+            long chunkSize = reply.number(0);
+            int chunks = (int) reply.number(1);
+            List<Callable<Void>> uploads = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                String object = name + Protocol.CHUNK_NAME_SEPARATOR + i;
+                long offset = i * chunkSize;
+                String[] ports = reply.string(2 + i).split(",");
+                uploads.add(() -> {
+                    uploadChain(file, object, offset, Math.min(chunkSize, size - offset), ports);
+                    return null;
+                });
+            }
+            runAll(uploads);
+        }
+        expect(controllerReply(), Protocol.STORE_COMPLETE_TOKEN);
+    }
+
+    /**
+     * Loads a file into target. A chunked file is fetched several chunks at a time, each from its own replica, and
+     * every chunk is written straight to its place in target; a chunk falls back to its other replicas on failure.
+     */
+    public void loadChunked(String name, File target) throws IOException {
+        Reply reply = request(Protocol.LOAD_CHUNKED_TOKEN, name);
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (reply.is(Protocol.LOAD_FROM_TOKEN)) {
+                loadWhole(name, reply, out);
+                return;
+            }
+            expect(reply, Protocol.LOAD_CHUNKS_FROM_TOKEN);
+            long size = reply.number(0);
+            long chunkSize = reply.number(1);
+            int chunks = (int) reply.number(2);
+            List<Callable<Void>> fetches = new ArrayList<>();
+            for (int i = 0; i < chunks; i++) {
+                String object = name + Protocol.CHUNK_NAME_SEPARATOR + i;
+                long offset = i * chunkSize;
+                String[] ports = reply.string(3 + i).split(",");
+                fetches.add(() -> {
+                    IOException failure = null;
+                    for (String port : ports) {
+                        try {
+                            fetch(Integer.parseInt(port), object, Math.min(chunkSize, size - offset), out, offset);
+                            return null;
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    throw failure;
+                });
+            }
+            runAll(fetches);
+        }
+    }
+
+    /**
+     * Fetches a file stored whole from the Dstore in a LOAD_FROM reply, asking the Controller for another with RELOAD
+     * each time one fails.
+     */
+    private void loadWhole(String name, Reply reply, FileChannel out) throws IOException {
+        if (hedgePercentile > 0) {
+            reply = loadHedged(name, reply, out);
+            if (reply == null) {
+                return;
+            }
+        }
+        while (true) {
+            int port = (int) reply.number(0);
+            long size = reply.number(1);
+            try {
+                fetch(port, name, size, out, 0);
+                return;
+            } catch (IOException e) {
+                reply = expect(request(Protocol.RELOAD_TOKEN, name), Protocol.LOAD_FROM_TOKEN);
+            }
+        }
+    }
+
+    /**
+     * One fetch of a whole file in a hedged load, run on its own thread and cancelled by closing its connection. Both
+     * fetches of a load write the same bytes to the same places, so the loser can be stopped at any point.
+     */
+    private final class Racer implements Runnable {
+        private final int port;
+        private final String object;
+        private final long length;
+        private final FileChannel out;
+        private final BlockingQueue<Racer> finished;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final long begun = System.nanoTime();
+        private volatile SocketChannel dstore;
+        private volatile boolean cancelled = false;
+        private IOException failure;
+
+        Racer(int port, String object, long length, FileChannel out, BlockingQueue<Racer> finished) {
+            this.port = port;
+            this.object = object;
+            this.length = length;
+            this.out = out;
+            this.finished = finished;
+            Thread.ofVirtual().name("hedge-" + port).start(this);
+        }
+
+        @Override
+        public void run() {
+            try (SocketChannel channel = openDstore(port)) {
+                dstore = channel;
+                if (!cancelled) {
+                    channel.socket().getOutputStream().write((Protocol.LOAD_DATA_TOKEN + " " + object + "\n").getBytes());
+                    receive(channel.socket().getInputStream(), port, object, length, out, 0, () -> {
+                        recordFirstByte(System.nanoTime() - begun);
+                        started.countDown();
+                    });
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                started.countDown();
+                finished.add(this);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            SocketChannel channel = dstore;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private synchronized void recordFirstByte(long nanos) {
+        firstBytes[(int) (firstByteCount++ % FIRST_BYTE_SAMPLES)] = nanos;
+    }
+
+    /**
+     * How long to wait for a load's first bytes before hedging it, in ns.
+     */
+    private synchronized long hedgeDelay() {
+        if (firstByteCount < MIN_FIRST_BYTE_SAMPLES) {
+            return initialHedgeDelay;
+        }
+        long[] sorted = Arrays.copyOf(firstBytes, (int) Math.min(firstByteCount, FIRST_BYTE_SAMPLES));
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * hedgePercentile / 100)];
+    }
+
+    /**
+     * Fetches a file from the Dstore in a LOAD_FROM reply, sending HEDGE for a second one if the first has not started
+     * sending within hedgeDelay(), and keeps whichever finishes first. Returns null once the file is loaded, or the
+     * reply to a RELOAD if every replica tried failed.
+     */
+    private Reply loadHedged(String name, Reply reply, FileChannel out) throws IOException {
+        long size = reply.number(1);
+        BlockingQueue<Racer> finished = new LinkedBlockingQueue<>();
+        List<Racer> racers = new ArrayList<>();
+        racers.add(new Racer((int) reply.number(0), name, size, out, finished));
+        try {
+            if (!racers.getFirst().started.await(hedgeDelay(), TimeUnit.NANOSECONDS)) {
+                Reply hedge = request(Protocol.HEDGE_TOKEN, name);
+                if (hedge.is(Protocol.LOAD_FROM_TOKEN)) {
+                    racers.add(new Racer((int) hedge.number(0), name, size, out, finished));
+                }
+            }
+            for (int left = racers.size(); left > 0; left--) {
+                if (finished.take().failure == null) {
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            for (Racer racer : racers) {
+                racer.cancel();
+            }
+        }
+        return expect(request(Protocol.RELOAD_TOKEN, name), Protocol.LOAD_FROM_TOKEN);
+    }
+
+    /**
+     * Stores a file erasure-coded with the Controller's default code. The file is cut into k data shards and m parity
+     * shards are computed from them a stripe at a time; each of the k + m shards is uploaded to its own Dstore.
+     */
+    public void storeErasureCoded(File file) throws IOException {
+        storeShards(file, Protocol.STORE_EC_TOKEN, file.getName(), String.valueOf(file.length()));
+    }
+
+    /**
+     * Stores a file erasure-coded with k data and m parity shards.
+     */
+    public void storeErasureCoded(File file, int k, int m) throws IOException {
+        storeShards(file, Protocol.STORE_EC_TOKEN, file.getName(), String.valueOf(file.length()), String.valueOf(k),
+                String.valueOf(m));
+    }
+
+    private void storeShards(File file, String... request) throws IOException {
+        Reply reply = expect(request(request), Protocol.STORE_SHARDS_TO_TOKEN);
+        ReedSolomon code = new ReedSolomon((int) reply.number(0), (int) reply.number(1));
+        int shardCount = code.k + code.m;
+        long size = file.length();
+        long shardSize = ReedSolomon.shardSize(size, code.k);
+        SocketChannel[] dstores = new SocketChannel[shardCount];
+        ExecutorService pool = Executors.newFixedThreadPool(shardCount);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < shardCount; i++) {
+                dstores[i] = openDstore((int) reply.number(2 + i));
+                String store = Protocol.STORE_TOKEN + " " + file.getName() + Protocol.SHARD_NAME_SEPARATOR + i + " " + shardSize;
+                dstores[i].socket().getOutputStream().write((store + "\n").getBytes());
+                expect(readLine(dstores[i].socket().getInputStream()), Protocol.ACK_TOKEN);
+            }
+            byte[][] shards = new byte[shardCount][(int) Math.min(ShardReader.STRIPE, Math.max(shardSize, 1))];
+            for (long done = 0; done < shardSize; ) {
+                int length = (int) Math.min(ShardReader.STRIPE, shardSize - done);
+                for (int i = 0; i < code.k; i++) {
+                    // the last data shard runs past the end of the file and is padded with zeros
+                    long start = i * shardSize + done;
+                    int available = (int) Math.max(0, Math.min(length, size - start));
+                    ByteBuffer stripe = ByteBuffer.wrap(shards[i], 0, available);
+                    while (stripe.hasRemaining()) {
+                        if (in.read(stripe, start + stripe.position()) < 0) {
+                            throw new EOFException(file + " shrank while it was being stored");
+                        }
+                    }
+                    Arrays.fill(shards[i], available, length, (byte) 0);
+                }
+                code.encode(shards, length);
+                List<Callable<Void>> writes = new ArrayList<>();
+                for (int i = 0; i < shardCount; i++) {
+                    SocketChannel dstore = dstores[i];
+                    ByteBuffer stripe = ByteBuffer.wrap(shards[i], 0, length);
+                    writes.add(() -> {
+                        while (stripe.hasRemaining()) {
+                            dstore.write(stripe);
+                        }
+                        return null;
+                    });
+                }
+                runAll(writes, pool);
+                done += length;
+            }
+        } finally {
+            for (SocketChannel dstore : dstores) {
+                if (dstore != null) {
+                    dstore.close();
+                }
+            }
+            pool.shutdownNow();
+        }
+        expect(controllerReply(), Protocol.STORE_COMPLETE_TOKEN);
+    }
+
+    /**
+     * Loads an erasure-coded file into target. k shards are streamed at once, data shards first, and any data shard
+     * that is lost or whose Dstore fails is decoded from the others on several cores. A file stored whole is fetched
+     * like LOAD does.
+     */
+    public void loadErasureCoded(String name, File target) throws IOException {
+        Reply reply = request(Protocol.LOAD_EC_TOKEN, name);
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (reply.is(Protocol.LOAD_FROM_TOKEN)) {
+                loadWhole(name, reply, out);
+                return;
+            }
+            expect(reply, Protocol.LOAD_SHARDS_FROM_TOKEN);
+            long size = reply.number(0);
+            ReedSolomon code = new ReedSolomon((int) reply.number(1), (int) reply.number(2));
+            long shardSize = ReedSolomon.shardSize(size, code.k);
+            String[] ports = reply.strings(3);
+            try (ShardReader reader = new ShardReader(name, code, shardSize, ports, timeout, false)) {
+                for (long done = 0; done < shardSize; ) {
+                    int length = (int) Math.min(ShardReader.STRIPE, shardSize - done);
+                    reader.next(length);
+                    for (int i = 0; i < code.k; i++) {
+                        long start = i * shardSize + done;
+                        ByteBuffer stripe = ByteBuffer.wrap(reader.shards[i], 0, (int) Math.max(0, Math.min(length, size - start)));
+                        while (stripe.hasRemaining()) {
+                            out.write(stripe, start + stripe.position());
+                        }
+                    }
+                    done += length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads length bytes of a file starting at offset. Only the requested span crosses the network; for a chunked file
+     * only the chunks the span touches are read.
+     */
+    public byte[] loadRange(String name, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        Reply reply = request(Protocol.LOAD_RANGE_TOKEN, name, String.valueOf(offset), String.valueOf(length));
+        if (reply.is(Protocol.LOAD_FROM_TOKEN)) {
+            while (true) {
+                int port = (int) reply.number(0);
+                try {
+                    fetchRange(port, name, offset, length, data, 0);
+                    return data;
+                } catch (IOException e) {
+                    reply = expect(request(Protocol.RELOAD_TOKEN, name), Protocol.LOAD_FROM_TOKEN);
+                }
+            }
+        }
+        expect(reply, Protocol.LOAD_CHUNKS_FROM_TOKEN);
+        long chunkSize = reply.number(1);
+        int done = 0;
+        while (done < length) {
+            int chunk = (int) ((offset + done) / chunkSize);
+            long inChunk = (offset + done) - chunk * chunkSize;
+            int span = (int) Math.min(length - done, chunkSize - inChunk);
+            IOException failure = null;
+            for (String port : reply.string(3 + chunk).split(",")) {
+                try {
+                    fetchRange(Integer.parseInt(port), name + Protocol.CHUNK_NAME_SEPARATOR + chunk, inChunk, span, data, done);
+                    failure = null;
+                    break;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            done += span;
+        }
+        return data;
+    }
+
+    /**
+     * Stores files in one exchange with the Controller. Every file goes to each of its Dstores over one connection per
+     * Dstore, the connections working in parallel. Returns the files that were not stored, mapped to the Controller's
+     * reason; an empty map means every file was.
+     */
+    public Map<String, String> storeBatch(List<File> files) throws IOException {
+        List<String> request = new ArrayList<>(List.of(Protocol.STORE_BATCH_TOKEN, String.valueOf(files.size())));
+        for (File file : files) {
+            request.add(file.getName());
+            request.add(String.valueOf(file.length()));
+        }
+        Reply reply = expect(request(request.toArray(String[]::new)), Protocol.STORE_BATCH_TO_TOKEN);
+        Map<Integer, List<File>> uploads = new TreeMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            String ports = reply.string(1 + i);
+            if (!ports.startsWith("ERROR_")) {
+                for (String port : ports.split(",")) {
+                    uploads.computeIfAbsent(Integer.parseInt(port), p -> new ArrayList<>()).add(files.get(i));
+                }
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, List<File>> upload : uploads.entrySet()) {
+            tasks.add(() -> {
+                try (SocketChannel dstore = openDstore(upload.getKey())) {
+                    OutputStream out = dstore.socket().getOutputStream();
+                    InputStream in = dstore.socket().getInputStream();
+                    for (File file : upload.getValue()) {
+                        out.write((Protocol.STORE_TOKEN + " " + file.getName() + " " + file.length() + "\n").getBytes());
+                        expect(readLine(in), Protocol.ACK_TOKEN);
+                        sendFile(file, 0, file.length(), dstore);
+                    }
+                } catch (IOException e) {
+                    // the Controller never hears about the rest and reports them as ERROR_STORE
+                    System.out.println("Upload to Dstore " + upload.getKey() + " failed: " + e.getMessage());
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        Reply complete = expect(controllerReply(), Protocol.STORE_BATCH_COMPLETE_TOKEN);
+        Map<String, String> failed = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            String result = complete.string(1 + i);
+            if (!result.equals(Protocol.STORE_COMPLETE_TOKEN)) {
+                failed.put(files.get(i).getName(), result);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Loads files into folder in one exchange with the Controller. The files are read from each Dstore over one
+     * connection, several Dstores at a time; a file whose Dstore fails is fetched from its other replicas. Returns the
+     * files that were not loaded, mapped to the reason; an empty map means every file was.
+     */
+    public Map<String, String> loadBatch(List<String> names, File folder) throws IOException {
+        Reply reply = expect(request(batch(Protocol.LOAD_BATCH_TOKEN, names)), Protocol.LOAD_BATCH_FROM_TOKEN);
+        Map<String, String> failed = new ConcurrentHashMap<>();
+        Map<Integer, List<Integer>> reads = new TreeMap<>();
+        // read out of the reply before the reads start, as they run on other threads
+        String[][] holders = new String[names.size()][];
+        long[] sizes = new long[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            if (reply.string(1 + 2 * i).equals("-")) {
+                failed.put(names.get(i), reply.string(2 + 2 * i));
+            } else {
+                holders[i] = reply.string(1 + 2 * i).split(",");
+                sizes[i] = reply.number(2 + 2 * i);
+                reads.computeIfAbsent(Integer.parseInt(holders[i][0]), p -> new ArrayList<>()).add(i);
+            }
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<Integer, List<Integer>> read : reads.entrySet()) {
+            tasks.add(() -> {
+                int done = 0;
+                try (SocketChannel dstore = openDstore(read.getKey())) {
+                    for (int i : read.getValue()) {
+                        try (FileChannel out = create(new File(folder, names.get(i)))) {
+                            dstore.socket().getOutputStream().write((Protocol.LOAD_DATA_TOKEN + " " + names.get(i) + "\n").getBytes());
+                            receive(dstore.socket().getInputStream(), read.getKey(), names.get(i), sizes[i], out, 0, null);
+                        }
+                        done++;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Load from Dstore " + read.getKey() + " failed: " + e.getMessage());
+                }
+                // the Dstore closes the connection at the first file it lacks, so the rest go to the other replicas
+                for (int i : read.getValue().subList(done, read.getValue().size())) {
+                    String[] ports = holders[i];
+                    IOException failure = new IOException("no other replica");
+                    for (int j = 1; j < ports.length && failure != null; j++) {
+                        try (FileChannel out = create(new File(folder, names.get(i)))) {
+                            fetch(Integer.parseInt(ports[j]), names.get(i), sizes[i], out, 0);
+                            failure = null;
+                        } catch (IOException e) {
+                            failure = e;
+                        }
+                    }
+                    if (failure != null) {
+                        failed.put(names.get(i), Protocol.ERROR_LOAD_TOKEN);
+                    }
+                }
+                return null;
+            });
+        }
+        runAll(tasks);
+        return failed;
+    }
+
+    /**
+     * Removes files in one exchange with the Controller. Returns the files that were not removed, mapped to the
+     * reason; an empty map means every file was.
+     */
+    public Map<String, String> removeBatch(List<String> names) throws IOException {
+        Reply reply = expect(request(batch(Protocol.REMOVE_BATCH_TOKEN, names)), Protocol.REMOVE_BATCH_COMPLETE_TOKEN);
+        Map<String, String> failed = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            String result = reply.string(1 + i);
+            if (!result.equals(Protocol.REMOVE_COMPLETE_TOKEN)) {
+                failed.put(names.get(i), result);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * The words of token count name*.
+     */
+    private static String[] batch(String token, List<String> names) {
+        String[] words = new String[2 + names.size()];
+        words[0] = token;
+        words[1] = String.valueOf(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            words[2 + i] = names.get(i);
+        }
+        return words;
+    }
+
+    private static FileChannel create(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Lists up to size stored files, in name order, that start with prefix and sort after after; either may be null.
+     * The Controller may cap the page below size.
+     */
+    public List<String> listPage(int size, String prefix, String after) throws IOException {
+        List<String> request = new ArrayList<>(List.of(Protocol.LIST_PAGE_TOKEN, String.valueOf(size)));
+        if (prefix != null) {
+            request.add("prefix=" + prefix);
+        }
+        if (after != null) {
+            request.add("after=" + after);
+        }
+        return List.of(expect(request(request.toArray(String[]::new)), Protocol.LIST_PAGE_TOKEN).strings(0));
+    }
+
+    /**
+     * Lists every stored file that starts with prefix, null for all, a page of size names at a time.
+     */
+    public List<String> listAll(String prefix, int size) throws IOException {
+        List<String> all = new ArrayList<>();
+        String after = null;
+        while (true) {
+            List<String> page = listPage(size, prefix, after);
+            // a short page may only mean the Controller caps pages below size, so stop at an empty one
+            if (page.isEmpty()) {
+                return all;
+            }
+            all.addAll(page);
+            after = page.getLast();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The files a Dstore holds, mapped to their sizes, with a version that goes up by one every time a file appears or
+ * disappears. The most recent changes are kept in a bounded log, so the Controller can ask for only what changed since
+ * the version it last saw instead of listing every file on every rebalance.
+ *
+ * The CRC32C of each file is kept too, and the whole inventory can be saved to a manifest in the Dstore's folder so a
+ * restarted Dstore finds its files again without reading every one of them.
+ */
+public class Inventory {
+    private static final int LOG_LIMIT = Integer.getInteger("dstore.inventory.log", 100_000);
+    static final String MANIFEST = ".manifest";
+
+    private record Entry(long size, long checksum, long modified) {
+    }
+
+    private final Map<String, String> files = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> checksums = new ConcurrentHashMap<>();
+    // "+name" or "-name" for each change, oldest first; it holds changes version - log.size() + 1 up to version
+    private final ArrayDeque<String> log = new ArrayDeque<>();
+    private long version = 0;
+
+    public String get(String filename) {
+        return files.get(filename);
+    }
+
+    /**
+     * The CRC32C the file was stored with, or null if it is not held.
+     */
+    public Long checksum(String filename) {
+        return checksums.get(filename);
+    }
+
+    public boolean containsKey(String filename) {
+        return files.containsKey(filename);
+    }
+
+    public Set<String> keySet() {
+        return files.keySet();
+    }
+
+    public long version() {
+        return version;
+    }
+
+    public synchronized void put(String filename, String size, long checksum) {
+        checksums.put(filename, checksum);
+        if (files.put(filename, size) == null) {
+            record("+" + filename);
+        }
+    }
+
+    public synchronized void remove(String filename) {
+        checksums.remove(filename);
+        if (files.remove(filename) != null) {
+            record("-" + filename);
+        }
+    }
+
+    private void record(String change) {
+        version++;
+        log.addLast(change);
+        if (log.size() > LOG_LIMIT) {
+            log.removeFirst();
+        }
+    }
+
+    /**
+     * The LIST_DELTA reply for a Controller that last saw version since: "LIST_DELTA version DELTA" followed by the
+     * changes made after since, or "LIST_DELTA version FULL" followed by every file if the log no longer reaches back
+     * that far or since is not a version this inventory has had.
+     */
+    public synchronized String delta(long since) {
+        StringBuilder reply = new StringBuilder(Protocol.LIST_DELTA_TOKEN + " " + version);
+        if (since < 0 || since > version || version - since > log.size()) {
+            reply.append(" FULL");
+            for (String filename : files.keySet()) {
+                reply.append(" ").append(filename);
+            }
+        } else {
+            reply.append(" DELTA");
+            Iterator<String> changes = log.iterator();
+            for (long skip = log.size() - (version - since); skip > 0; skip--) {
+                changes.next();
+            }
+            while (changes.hasNext()) {
+                reply.append(" ").append(changes.next());
+            }
+        }
+        return reply.toString();
+    }
+
+    /**
+     * Writes "name size checksum modified" for every file to the manifest in folder, replacing the old one only once
+     * the new one is complete. Stores and removes carry on meanwhile; a file that changes while the manifest is
+     * written is simply read again on the next restore.
+     */
+    public void save(Path folder) throws IOException {
+        Path partial = Files.createTempFile(folder, Dstore.PARTIAL_PREFIX, ".manifest");
+        try (BufferedWriter out = Files.newBufferedWriter(partial)) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                Long checksum = checksums.get(file.getKey());
+                long modified;
+                try {
+                    modified = Files.getLastModifiedTime(folder.resolve(file.getKey())).toMillis();
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                if (checksum != null) {
+                    out.write(file.getKey() + " " + file.getValue() + " " + checksum + " " + modified);
+                    out.newLine();
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, folder.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Fills the inventory from the files in folder, deleting any an interrupted transfer left behind. A file the
+     * manifest lists with the same size and modification time takes its checksum from the manifest; any other, stored
+     * or replaced since the manifest was written, is read to work it out. Every file reaches its name complete, so
+     * whatever is there is kept. Returns how many files had to be read.
+     */
+    public int restore(Path folder) throws IOException {
+        Map<String, Entry> manifest = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(folder.resolve(MANIFEST))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] entry = line.split(" ");
+                manifest.put(entry[0], new Entry(Long.parseLong(entry[1]), Long.parseLong(entry[2]), Long.parseLong(entry[3])));
+            }
+        } catch (NoSuchFileException e) {
+            System.out.println("No manifest, reading every file");
+        }
+        List<Path> found;
+        try (Stream<Path> listing = Files.list(folder)) {
+            found = listing.filter(Files::isRegularFile).toList();
+        }
+        int read = 0;
+        for (Path path : found) {
+            String filename = path.getFileName().toString();
+            if (filename.startsWith(Dstore.PARTIAL_PREFIX)) {
+                Files.delete(path);
+                continue;
+            }
+            if (filename.equals(MANIFEST)) {
+                continue;
+            }
+            long size = Files.size(path);
+            Entry listed = manifest.get(filename);
+            if (listed != null && listed.size() == size && listed.modified() == Files.getLastModifiedTime(path).toMillis()) {
+                put(filename, String.valueOf(size), listed.checksum());
+                continue;
+            }
+            put(filename, String.valueOf(size), checksum(path));
+            read++;
+        }
+        return read;
+    }
+
+    static long checksum(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Compares the old LOAD_DATA path (readAllBytes then write) with Dstore.sendFile over a loopback socket, reporting
+ * throughput and bytes allocated by the sending thread for each file size.
+ *
+ * Usage: java LoadDataBenchmark [size ...]   sizes like 1K, 64M, 4G (default 1K 64K 1M 64M 1G 4G)
+ */
+public class LoadDataBenchmark {
+
+    private static final long MIN_BYTES_PER_RUN = 256L << 20;
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : new String[]{"1K", "64K", "1M", "64M", "1G", "4G"};
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            Thread drain = new Thread(() -> drain(server));
+            drain.setDaemon(true);
+            drain.start();
+
+            try (SocketChannel channel = SocketChannel.open(server.getLocalAddress())) {
+                OutputStream out = Channels.newOutputStream(channel);
+                System.out.printf("%-8s %-10s %12s %16s%n", "size", "path", "MB/s", "alloc/op (B)");
+                for (String size : sizes) {
+                    long bytes = parseSize(size);
+                    File file = File.createTempFile("load-bench", ".bin");
+                    file.deleteOnExit();
+                    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                        raf.setLength(bytes);
+                    }
+                    int runs = (int) Math.max(3, Math.min(10_000, MIN_BYTES_PER_RUN / bytes));
+
+                    for (String path : new String[]{"readAll", "transferTo"}) {
+                        // one untimed pass to warm the page cache and JIT
+                        if (!send(path, file, channel, out)) {
+                            System.out.printf("%-8s %-10s %12s %16s%n", size, path, "failed", "-");
+                            continue;
+                        }
+                        long allocated = threads.getCurrentThreadAllocatedBytes();
+                        long start = System.nanoTime();
+                        for (int i = 0; i < runs; i++) {
+                            send(path, file, channel, out);
+                        }
+                        long elapsed = System.nanoTime() - start;
+                        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+                        double mbPerSecond = (bytes * (double) runs / (1 << 20)) / (elapsed / 1e9);
+                        System.out.printf("%-8s %-10s %12.1f %16d%n", size, path, mbPerSecond, allocated / runs);
+                    }
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static boolean send(String path, File file, SocketChannel channel, OutputStream out) throws IOException {
+        if (path.equals("transferTo")) {
+            Dstore.sendFile(file, channel);
+            return true;
+        }
+        try (FileInputStream fileStream = new FileInputStream(file)) {
+            out.write(fileStream.readAllBytes());
+            return true;
+        } catch (OutOfMemoryError e) {
+            return false;
+        }
+    }
+
+    private static void drain(ServerSocketChannel server) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        try (SocketChannel peer = server.accept()) {
+            while (peer.read(buffer.clear()) >= 0) {
+                // discard
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static long parseSize(String size) {
+        char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+        long scale = switch (unit) {
+            case 'K' -> 1L << 10;
+            case 'M' -> 1L << 20;
+            case 'G' -> 1L << 30;
+            default -> 1;
+        };
+        String number = scale == 1 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(number) * scale;
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the Controller's metadata on disk as a write-ahead log of records plus a periodic snapshot, so a restarted
+ * Controller gets its namespace back without asking the Dstores. A record is one line of text, e.g. "FILE ...",
+ * that the Controller both writes and replays; the store only frames, orders and persists them.
+ *
+ * Appends are group-committed: one writer thread takes every record queued since its last write, writes them in a
+ * single call and forces them to disk once, then completes all their futures. However many STOREs finish at once,
+ * each waits for at most two forces.
+ *
+ * The log is split into numbered segments. After snapshotEvery records the writer moves on to a new segment and a
+ * snapshot of the whole state is written beside it, after which the segments before it are deleted. The Controller
+ * must change its maps before appending the record that describes the change, so that a snapshot taken after the
+ * switch sees every change in the earlier segments; changes it sees from the later ones are simply replayed again.
+ *
+ * On disk each record is its length, its CRC32C and its bytes. Recovery stops at the first record that is cut short
+ * or fails its check, which can only be the last one written before a crash, and truncates it away.
+ */
+public class MetadataStore {
+    private static final String SNAPSHOT = "snapshot";
+    private static final String SEGMENT = "wal-";
+    private static final String SNAPSHOT_TOKEN = "SNAPSHOT";
+
+    private record Pending(byte[] record, CompletableFuture<Void> written) {
+    }
+
+    private final Path folder;
+    private final boolean sync;
+    private final long snapshotEvery;
+    private final Supplier<Iterator<String>> state;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private long segment;
+    private FileChannel log;
+    private long sinceSnapshot = 0;
+    private volatile boolean snapshotting = false;
+
+    /**
+     * Replays the snapshot and log in folder through apply, then starts a new segment to append to.
+     *
+     * @param sync          force every group of records to disk before completing them
+     * @param snapshotEvery how many records to log between snapshots
+     * @param state         the records that rebuild the whole current state, read while writing a snapshot
+     */
+    public MetadataStore(Path folder, boolean sync, long snapshotEvery, Consumer<String[]> apply,
+                         Supplier<Iterator<String>> state) throws IOException {
+        this.folder = folder;
+        this.sync = sync;
+        this.snapshotEvery = snapshotEvery;
+        this.state = state;
+        Files.createDirectories(folder);
+        // left by a snapshot that was cut short
+        try (Stream<Path> listing = Files.list(folder)) {
+            for (Path path : listing.filter(path -> path.getFileName().toString().endsWith(".part")).toList()) {
+                Files.delete(path);
+            }
+        }
+        long start = System.nanoTime();
+        long first = 0;
+        long records = 0;
+        Path snapshot = folder.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            List<String> header = new ArrayList<>(1);
+            records += replay(snapshot, line -> {
+                if (header.isEmpty()) {
+                    header.add(line);
+                } else {
+                    apply.accept(line.split(" "));
+                }
+            });
+            String[] marker = header.getFirst().split(" ");
+            if (!marker[0].equals(SNAPSHOT_TOKEN)) {
+                throw new IOException("Snapshot in " + folder + " has no header");
+            }
+            first = Long.parseLong(marker[1]);
+        }
+        TreeMap<Long, Path> segments = segments();
+        for (Path path : segments.tailMap(first).values()) {
+            records += replay(path, line -> apply.accept(line.split(" ")));
+        }
+        segment = Math.max(first, segments.isEmpty() ? 0 : segments.lastKey() + 1);
+        log = open(segment);
+        System.out.println("Recovered metadata from " + records + " records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        Thread.ofPlatform().name("metadata-log").daemon().start(this::write);
+    }
+
+    /**
+     * Queues a record. The future completes once it is on disk, or at least handed to the OS without sync.
+     */
+    public CompletableFuture<Void> append(String record) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        queue.add(new Pending(record.getBytes(StandardCharsets.UTF_8), written));
+        return written;
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> listing = Files.list(folder)) {
+            listing.filter(path -> path.getFileName().toString().startsWith(SEGMENT))
+                    .forEach(path -> segments.put(Long.parseLong(path.getFileName().toString().substring(SEGMENT.length())), path));
+        }
+        return segments;
+    }
+
+    private FileChannel open(long number) throws IOException {
+        return FileChannel.open(folder.resolve(SEGMENT + number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static void frame(DataOutputStream out, byte[] record) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * Reads every intact record of a file into apply and cuts off a damaged tail. Returns the number of records read.
+     */
+    private static long replay(Path path, Consumer<String> apply) throws IOException {
+        long records = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    int expected = in.readInt();
+                    if (length < 0) {
+                        throw new EOFException("negative length");
+                    }
+                    byte[] record = in.readNBytes(length);
+                    CRC32C crc = new CRC32C();
+                    crc.update(record);
+                    if (record.length != length || (int) crc.getValue() != expected) {
+                        throw new EOFException("damaged record");
+                    }
+                    apply.accept(new String(record, StandardCharsets.UTF_8));
+                } catch (EOFException e) {
+                    System.out.println("Cutting " + path.getFileName() + " at byte " + valid + ": " + e.getMessage());
+                    try (FileChannel truncate = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                        truncate.truncate(valid);
+                    }
+                    break;
+                }
+                valid += 8 + length;
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * The writer thread: writes whatever has queued up as one batch and forces it, over and over. A Controller that
+     * can no longer write its log stops, rather than go on acknowledging changes it would forget.
+     */
+    private void write() {
+        List<Pending> batch = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                for (Pending pending : batch) {
+                    frame(out, pending.record());
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                if (sync) {
+                    log.force(false);
+                }
+                for (Pending pending : batch) {
+                    pending.written().complete(null);
+                }
+                sinceSnapshot += batch.size();
+                if (sinceSnapshot >= snapshotEvery && !snapshotting) {
+                    rotate();
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't write the metadata log, stopping: " + e.getMessage());
+                Runtime.getRuntime().halt(1);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+                bytes.reset();
+            }
+        }
+    }
+
+    /**
+     * Moves on to a new segment and snapshots the state in the background; the records before the new segment are
+     * all in the state by now, since the Controller changes its maps before it logs.
+     */
+    private void rotate() throws IOException {
+        log.close();
+        long from = ++segment;
+        log = open(from);
+        sinceSnapshot = 0;
+        snapshotting = true;
+        Thread.ofPlatform().name("metadata-snapshot").daemon().start(() -> {
+            try {
+                snapshot(from);
+            } catch (IOException e) {
+                System.out.println("Couldn't write a metadata snapshot: " + e.getMessage());
+            } finally {
+                snapshotting = false;
+            }
+        });
+    }
+
+    private void snapshot(long from) throws IOException {
+        long start = System.nanoTime();
+        Path partial = Files.createTempFile(folder, SNAPSHOT, ".part");
+        try (FileOutputStream file = new FileOutputStream(partial.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            frame(out, (SNAPSHOT_TOKEN + " " + from).getBytes(StandardCharsets.UTF_8));
+            for (Iterator<String> records = state.get(); records.hasNext(); ) {
+                frame(out, records.next().getBytes(StandardCharsets.UTF_8));
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, folder.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (Path old : segments().headMap(from).values()) {
+            Files.delete(old);
+        }
+        System.out.println("Snapshotted metadata in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
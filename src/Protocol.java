@@ -24,7 +24,55 @@ public class Protocol {
 	public final static String ACK_TOKEN = "ACK";
 	public final static String STORE_ACK_TOKEN = "STORE_ACK";
 	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-	public final static String JOIN_TOKEN = "JOIN";
+	public final static String JOIN_TOKEN = "JOIN"; // followed by "name size checksum" for each file a restarted Dstore kept
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+
+	// extensions, only sent by clients that ask for them
+	public final static String STORE_CHAIN_TOKEN = "STORE_CHAIN"; // also from Dstores down the chain
+	public final static String STORE_CHUNKED_TOKEN = "STORE_CHUNKED";
+	public final static String STORE_CHUNKS_TO_TOKEN = "STORE_CHUNKS_TO";
+	public final static String LOAD_CHUNKED_TOKEN = "LOAD_CHUNKED";
+	public final static String LOAD_CHUNKS_FROM_TOKEN = "LOAD_CHUNKS_FROM";
+	public final static String LOAD_RANGE_TOKEN = "LOAD_RANGE";
+	public final static String LOAD_DATA_RANGE_TOKEN = "LOAD_DATA_RANGE";
+	public final static String ERROR_INVALID_RANGE_TOKEN = "ERROR_INVALID_RANGE";
+	public final static String STORE_EC_TOKEN = "STORE_EC";
+	public final static String STORE_SHARDS_TO_TOKEN = "STORE_SHARDS_TO";
+	public final static String LOAD_EC_TOKEN = "LOAD_EC";
+	public final static String LOAD_SHARDS_FROM_TOKEN = "LOAD_SHARDS_FROM";
+	public final static String REBUILD_SHARD_TOKEN = "REBUILD_SHARD"; // from the Controller
+	public final static String LIST_DELTA_TOKEN = "LIST_DELTA"; // between the Controller and Dstores
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // LIST_PAGE size [prefix=p] [after=name], answered in kind
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // STORE_BATCH count (name size)*
+	public final static String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO";
+	public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH"; // LOAD_BATCH count name*
+	public final static String LOAD_BATCH_FROM_TOKEN = "LOAD_BATCH_FROM";
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // REMOVE_BATCH count name*, also from the Controller
+	public final static String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
+	public final static String REMOVE_BATCH_ACK_TOKEN = "REMOVE_BATCH_ACK"; // from Dstores, followed by every file now gone
+	public final static String ERROR_STORE_TOKEN = "ERROR_STORE"; // a file in a batch whose STORE_ACKs never all came
+	public final static String ERROR_REMOVE_TOKEN = "ERROR_REMOVE"; // a file in a batch whose REMOVE_ACKs never all came
+	public final static String HEDGE_TOKEN = "HEDGE"; // HEDGE name: a second replica for a load that is slow to start
+	public final static String CORRUPT_TOKEN = "CORRUPT"; // CORRUPT name, from a Dstore that found its copy damaged and removed it
+	public final static String STORE_COMPRESSED_TOKEN = "STORE_COMPRESSED"; // STORE_COMPRESSED name size storedSize, answered like STORE
+	public final static String LOAD_COMPRESSED_TOKEN = "LOAD_COMPRESSED";
+	public final static String LOAD_COMPRESSED_FROM_TOKEN = "LOAD_COMPRESSED_FROM"; // LOAD_COMPRESSED_FROM port size storedSize
+	public final static String STORE_DEDUP_TOKEN = "STORE_DEDUP"; // STORE_DEDUP name size sha256, answered STORE_COMPLETE at once if the content is stored
+	public final static String STORE_CONTENT_TO_TOKEN = "STORE_CONTENT_TO"; // upload the file as its content object
+	public final static String LOAD_DEDUP_TOKEN = "LOAD_DEDUP";
+	public final static String LOAD_CONTENT_FROM_TOKEN = "LOAD_CONTENT_FROM"; // LOAD_CONTENT_FROM port size object
+	public final static String LOAD_DONE_TOKEN = "LOAD_DONE"; // LOAD_DONE object, from a Dstore that has sent a client all it asked for
+	public final static String ERROR_MALFORMED_TOKEN = "ERROR_MALFORMED"; // the reply to a binary frame the Controller can't act on
+
+	// chunk i of file f is stored on Dstores as f + CHUNK_NAME_SEPARATOR + i
+	public final static String CHUNK_NAME_SEPARATOR = "#chunk";
+	// shard i of an erasure-coded file f is stored as f + SHARD_NAME_SEPARATOR + i, data shards first
+	public final static String SHARD_NAME_SEPARATOR = "#shard";
+	// a file stored compressed is kept on Dstores, zlib-deflated, as f + COMPRESSED_NAME_SUFFIX
+	public final static String COMPRESSED_NAME_SUFFIX = "#deflate";
+	// the content of a deduplicated file is kept on Dstores as CONTENT_NAME_PREFIX + its SHA-256 in lower-case hex, and
+	// shared by every file stored with that content
+	public final static String CONTENT_NAME_PREFIX = "#sha256-";
 }
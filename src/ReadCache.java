@@ -0,0 +1,388 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the files a Dstore loads most often in direct memory, so a hot LOAD_DATA is written to the socket straight
+ * from there, without touching the disk or copying through the heap. The memory is allocated once, up front, as
+ * fixed-size pages; a cached file takes as many pages as it needs, wherever they are free.
+ *
+ * Which files stay is decided W-TinyLFU style. A count-min sketch, halved now and then so old popularity fades,
+ * estimates how often every file has been asked for, cached or not. New files enter a small LRU window; a file
+ * leaving the window only gets into the main cache if it has been asked for more often than the file it would push
+ * out. The main cache is a segmented LRU: files hit again there move from probation to protected, so a scan of
+ * files read once passes through the window and never displaces the files that are read all the time.
+ *
+ * A file is pinned while it is being sent and its pages are only reused once it has been evicted and every send of
+ * it has finished. Invalidating a file, as a REMOVE or STORE of it must, also stops any read of it already under
+ * way from being cached.
+ */
+public class ReadCache {
+    private static final int PAGE = 8 * 1024;
+    // pages per direct buffer, which an int must be able to index
+    private static final int ARENA_PAGES = (1 << 30) / PAGE;
+    private static final int STRIPES = 1024;
+
+    /**
+     * A cached file. readers counts the sends under way, which keep its pages from being reused.
+     */
+    public static class Entry {
+        private final String filename;
+        private final long size;
+        private final int[] pages;
+        private Map<String, Entry> region;
+        private int readers = 1;
+        private boolean evicted = false;
+
+        private Entry(String filename, long size, int[] pages) {
+            this.filename = filename;
+            this.size = size;
+            this.pages = pages;
+        }
+
+        public long size() {
+            return size;
+        }
+    }
+
+    private final ByteBuffer[] arenas;
+    private final int[] free;
+    private int freeCount;
+    private final long maxObject;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final long mainCapacity;
+    private final Map<String, Entry> index = new HashMap<>();
+    // access-ordered, least recently used first
+    private final Map<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowPages;
+    private long probationPages;
+    private long protectedPages;
+    private final FrequencySketch sketch;
+    // bumped by every invalidation of a name in the stripe, so a read that started before one is not cached
+    private final long[] stamps = new long[STRIPES];
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param bytes     the memory to set aside
+     * @param maxObject the largest file that is cached, at most an eighth of bytes
+     */
+    public ReadCache(long bytes, long maxObject) {
+        int pages = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / PAGE));
+        this.arenas = new ByteBuffer[(pages + ARENA_PAGES - 1) / ARENA_PAGES];
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = ByteBuffer.allocateDirect(Math.min(ARENA_PAGES, pages - i * ARENA_PAGES) * PAGE);
+        }
+        this.free = new int[pages];
+        for (int i = 0; i < pages; i++) {
+            free[freeCount++] = pages - 1 - i;
+        }
+        this.maxObject = Math.min(maxObject, (long) pages * PAGE / 8);
+        // room outside the policy's capacity for files being read in, and evicted ones still being sent
+        long capacity = Math.max(pages / 2, pages - 4L * pagesFor(this.maxObject));
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = mainCapacity * 8 / 10;
+        this.sketch = new FrequencySketch(pages);
+    }
+
+    private static int pagesFor(long size) {
+        return (int) ((size + PAGE - 1) / PAGE);
+    }
+
+    private static int stripe(String filename) {
+        return (filename.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private ByteBuffer page(int page, int offset, int length) {
+        return arenas[page / ARENA_PAGES].slice((page % ARENA_PAGES) * PAGE + offset, length);
+    }
+
+    /**
+     * The stamp to hand fill for a file that is about to be read.
+     */
+    public synchronized long stamp(String filename) {
+        return stamps[stripe(filename)];
+    }
+
+    /**
+     * Returns the cached file pinned, to be released after sending it, or null on a miss. Either way the request
+     * counts towards the file's frequency.
+     */
+    public synchronized Entry get(String filename) {
+        sketch.increment(filename);
+        Entry entry = index.get(filename);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.region == probation) {
+            probation.remove(filename);
+            probationPages -= entry.pages.length;
+            add(protectedRegion, entry);
+            while (protectedPages > protectedCapacity) {
+                Entry demoted = eldest(protectedRegion);
+                protectedRegion.remove(demoted.filename);
+                protectedPages -= demoted.pages.length;
+                add(probation, demoted);
+            }
+        } else {
+            entry.region.get(filename);
+        }
+        entry.readers++;
+        return entry;
+    }
+
+    /**
+     * Reads a file that missed into the cache and returns it pinned, or returns null, reading nothing, if it is too
+     * large, is already being cached, or was invalidated since stamp was taken. Unless checksum is -1 the file read
+     * must match it as its CRC32C, or nothing is cached and CorruptFileException is thrown.
+     */
+    public Entry fill(String filename, Dstore.Span file, long stamp, long checksum) throws IOException {
+        if (file.length() > maxObject) {
+            return null;
+        }
+        int[] pages;
+        synchronized (this) {
+            if (stamps[stripe(filename)] != stamp || index.containsKey(filename) || freeCount < pagesFor(file.length())) {
+                return null;
+            }
+            pages = new int[pagesFor(file.length())];
+            for (int i = 0; i < pages.length; i++) {
+                pages[i] = free[--freeCount];
+            }
+        }
+        try {
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer page = page(pages[i], 0, (int) Math.min(PAGE, file.length() - (long) i * PAGE));
+                while (page.hasRemaining()) {
+                    if (file.channel().read(page, file.start() + (long) i * PAGE + page.position()) < 0) {
+                        throw new EOFException("Stored data ends before byte " + file.length());
+                    }
+                }
+            }
+            if (checksum >= 0) {
+                CRC32C crc = new CRC32C();
+                for (int i = 0; i < pages.length; i++) {
+                    crc.update(page(pages[i], 0, (int) Math.min(PAGE, file.length() - (long) i * PAGE)));
+                }
+                if (crc.getValue() != checksum) {
+                    throw new Dstore.CorruptFileException("Stored data does not match its checksum");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            release(pages);
+            throw e;
+        }
+        synchronized (this) {
+            if (stamps[stripe(filename)] != stamp || index.containsKey(filename)) {
+                release(pages);
+                return null;
+            }
+            Entry entry = new Entry(filename, file.length(), pages);
+            index.put(filename, entry);
+            add(window, entry);
+            while (windowPages > windowCapacity) {
+                admit(eldest(window));
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Sends length bytes of a pinned file, from offset, in as few writes as the channel allows.
+     */
+    public void send(Entry entry, long offset, long length, WritableByteChannel out) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        int first = (int) (offset / PAGE);
+        int last = (int) ((offset + length - 1) / PAGE);
+        ByteBuffer[] views = new ByteBuffer[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            long start = Math.max(offset, (long) i * PAGE);
+            long end = Math.min(offset + length, (long) (i + 1) * PAGE);
+            views[i - first] = page(entry.pages[i], (int) (start - (long) i * PAGE), (int) (end - start));
+        }
+        if (out instanceof GatheringByteChannel gathering) {
+            for (long sent = 0; sent < length; ) {
+                sent += gathering.write(views);
+            }
+        } else {
+            for (ByteBuffer view : views) {
+                while (view.hasRemaining()) {
+                    out.write(view);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unpins a file once a send of it is done.
+     */
+    public synchronized void release(Entry entry) {
+        if (--entry.readers == 0 && entry.evicted) {
+            release(entry.pages);
+        }
+    }
+
+    /**
+     * Drops a file that has changed or gone, and keeps any read of it under way from being cached.
+     */
+    public synchronized void invalidate(String filename) {
+        stamps[stripe(filename)]++;
+        Entry entry = index.get(filename);
+        if (entry != null) {
+            evict(entry);
+            evictions--;
+        }
+    }
+
+    /**
+     * One line of hit ratio and occupancy for the log.
+     */
+    public synchronized String stats() {
+        long loads = hits + misses;
+        return String.format("Read cache: %.1f%% hits (%d of %d loads), %d files in %d KB, %d evicted",
+                loads == 0 ? 0.0 : 100.0 * hits / loads, hits, loads, index.size(),
+                (windowPages + probationPages + protectedPages) * PAGE / 1024, evictions);
+    }
+
+    public synchronized long loads() {
+        return hits + misses;
+    }
+
+    private void release(int[] pages) {
+        for (int page : pages) {
+            free[freeCount++] = page;
+        }
+    }
+
+    private static Entry eldest(Map<String, Entry> region) {
+        Iterator<Entry> entries = region.values().iterator();
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    private void add(Map<String, Entry> region, Entry entry) {
+        entry.region = region;
+        region.put(entry.filename, entry);
+        if (region == window) {
+            windowPages += entry.pages.length;
+        } else if (region == probation) {
+            probationPages += entry.pages.length;
+        } else {
+            protectedPages += entry.pages.length;
+        }
+    }
+
+    /**
+     * Moves a file out of the window into probation if it is asked for more often than each file it has to push out
+     * of the main cache to fit; otherwise it is the one evicted.
+     */
+    private void admit(Entry candidate) {
+        window.remove(candidate.filename);
+        windowPages -= candidate.pages.length;
+        candidate.region = null;
+        int frequency = sketch.frequency(candidate.filename);
+        while (probationPages + protectedPages + candidate.pages.length > mainCapacity) {
+            Entry victim = eldest(probation);
+            if (victim == null) {
+                victim = eldest(protectedRegion);
+            }
+            if (victim == null || frequency <= sketch.frequency(victim.filename)) {
+                evict(candidate);
+                return;
+            }
+            evict(victim);
+        }
+        add(probation, candidate);
+    }
+
+    private void evict(Entry entry) {
+        index.remove(entry.filename);
+        if (entry.region != null) {
+            entry.region.remove(entry.filename);
+            if (entry.region == window) {
+                windowPages -= entry.pages.length;
+            } else if (entry.region == probation) {
+                probationPages -= entry.pages.length;
+            } else {
+                protectedPages -= entry.pages.length;
+            }
+            entry.region = null;
+        }
+        entry.evicted = true;
+        evictions++;
+        if (entry.readers == 0) {
+            release(entry.pages);
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters, four to a file. Once it has counted ten times as many requests as it has
+     * counters in a row, every counter is halved, so the estimates follow what is popular now.
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f};
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expected) {
+            int width = Integer.highestOneBit(Math.max(64, expected) - 1) << 1;
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int slot(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int row = 0; row < rows.length; row++) {
+                int slot = slot(hash, row);
+                if (rows[row][slot] < 15) {
+                    rows[row][slot]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (byte[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int row = 0; row < rows.length; row++) {
+                frequency = Math.min(frequency, rows[row][slot(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+}
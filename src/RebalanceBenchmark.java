@@ -0,0 +1,93 @@
+import java.util.*;
+
+/**
+ * Times RebalancePlanner on a large cluster in three situations: an empty Dstore joining a balanced cluster, a Dstore
+ * failing so its replicas must be copied again, and a skewed cluster. For each it reports the plan time, how many
+ * copies the plan sends and the load spread before and after.
+ *
+ * Usage: java RebalanceBenchmark [files] [dstores] [R]   (default 1000000 200 3)
+ */
+public class RebalanceBenchmark {
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int dstores = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int r = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        Map<String, Integer> copies = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            copies.put("file" + i, r);
+        }
+        System.out.printf("%d files, %d Dstores, R=%d%n", files, dstores, r);
+        System.out.printf("%-8s %10s %10s %14s %14s%n", "case", "plan (ms)", "moves", "load before", "load after");
+
+        // one untimed plan to warm the JIT
+        run("warm-up", copies, balanced(files, dstores - 1, r, dstores), false);
+        run("join", copies, balanced(files, dstores - 1, r, dstores), true);
+        Map<Integer, List<String>> failed = balanced(files, dstores + 1, r, dstores + 1);
+        failed.remove(dstores);
+        run("failure", copies, failed, true);
+        run("skewed", copies, skewed(files, dstores, r), true);
+    }
+
+    /**
+     * Every file on r consecutive Dstores out of the first used; the rest of the ports Dstores are empty.
+     */
+    private static Map<Integer, List<String>> balanced(int files, int used, int r, int ports) {
+        Map<Integer, List<String>> allocation = new TreeMap<>();
+        for (int port = 0; port < ports; port++) {
+            allocation.put(port, new ArrayList<>());
+        }
+        for (int i = 0; i < files; i++) {
+            for (int c = 0; c < r; c++) {
+                allocation.get((i + c) % used).add("file" + i);
+            }
+        }
+        return allocation;
+    }
+
+    /**
+     * Replicas placed with a strong bias towards low-numbered Dstores, as after several failures and joins.
+     */
+    private static Map<Integer, List<String>> skewed(int files, int dstores, int r) {
+        Random random = new Random(1);
+        Map<Integer, List<String>> allocation = new TreeMap<>();
+        for (int port = 0; port < dstores; port++) {
+            allocation.put(port, new ArrayList<>());
+        }
+        for (int i = 0; i < files; i++) {
+            Set<Integer> ports = new HashSet<>();
+            while (ports.size() < r) {
+                double u = random.nextDouble();
+                ports.add((int) (u * u * dstores));
+            }
+            for (Integer port : ports) {
+                allocation.get(port).add("file" + i);
+            }
+        }
+        return allocation;
+    }
+
+    private static void run(String name, Map<String, Integer> copies, Map<Integer, List<String>> listed, boolean print) {
+        String before = spread(listed.values().stream().mapToInt(List::size).toArray());
+        // start each plan with a clean heap so the collection of the setup garbage isn't timed
+        System.gc();
+        long start = System.nanoTime();
+        RebalancePlanner.Plan plan = new RebalancePlanner(copies, object -> object).plan(listed);
+        long elapsed = System.nanoTime() - start;
+
+        Map<Integer, Integer> after = new HashMap<>();
+        for (List<Integer> ports : plan.placement().values()) {
+            for (Integer port : ports) {
+                after.merge(port, 1, Integer::sum);
+            }
+        }
+        int[] loads = listed.keySet().stream().mapToInt(port -> after.getOrDefault(port, 0)).toArray();
+        if (print) {
+            System.out.printf("%-8s %10.1f %10d %14s %14s%n", name, elapsed / 1e6, plan.moves(), before, spread(loads));
+        }
+    }
+
+    private static String spread(int[] loads) {
+        return Arrays.stream(loads).min().orElse(0) + ".." + Arrays.stream(loads).max().orElse(0);
+    }
+}
@@ -0,0 +1,475 @@
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Plans a rebalance that keeps every replica where it already is unless it has to move. Starting from what the
+ * Dstores listed, in order it:
+ * <ol>
+ *     <li>drops copies beyond the number wanted, from the fullest holders;</li>
+ *     <li>takes objects off any Dstore above the ceiling and adds the copies that are missing, each to the emptiest
+ *     Dstore that may hold it;</li>
+ *     <li>moves objects from the fullest Dstores onto any still below the floor.</li>
+ * </ol>
+ * Objects and Dstores are numbered once up front and everything after works on int arrays. Dstores are kept in heaps
+ * ordered by load and every membership test is a hash lookup or a scan of one object's few holders, so a plan costs
+ * O(objects + moves * log Dstores).
+ *
+ * Two objects in the same group, e.g. two shards of one erasure-coded file, are never put on the same Dstore, and an
+ * object's copies are always on different Dstores.
+ */
+public class RebalancePlanner {
+
+    /**
+     * What each Dstore has to do, and where every object ends up.
+     *
+     * @param sends     per Dstore, the objects it sends and the Dstores it sends each to
+     * @param removes   per Dstore, the objects it deletes once its sends are done
+     * @param placement the Dstores holding each object after the rebalance
+     */
+    public record Plan(Map<Integer, Map<String, List<Integer>>> sends, Map<Integer, List<String>> removes,
+                       Map<String, List<Integer>> placement) {
+
+        /**
+         * The REBALANCE message for each Dstore that has anything to do. With withRemoves unset the messages only
+         * send, for a caller that removes the dropped copies itself once the new placement is in force.
+         */
+        public Map<Integer, String> commands(boolean withRemoves) {
+            Set<Integer> ports = new TreeSet<>(sends.keySet());
+            if (withRemoves) {
+                ports.addAll(removes.keySet());
+            }
+            Map<Integer, String> commands = new TreeMap<>();
+            for (Integer port : ports) {
+                Map<String, List<Integer>> toSend = sends.getOrDefault(port, Map.of());
+                List<String> toRemove = withRemoves ? removes.getOrDefault(port, List.of()) : List.<String>of();
+                StringBuilder command = new StringBuilder(Protocol.REBALANCE_TOKEN);
+                command.append(" ").append(toSend.size());
+                for (String object : toSend.keySet()) {
+                    command.append(" ").append(object).append(" ").append(toSend.get(object).size());
+                    for (Integer target : toSend.get(object)) {
+                        command.append(" ").append(target);
+                    }
+                }
+                command.append(" ").append(toRemove.size());
+                for (String object : toRemove) {
+                    command.append(" ").append(object);
+                }
+                commands.put(port, command.toString());
+            }
+            return commands;
+        }
+
+        /**
+         * The number of copies the plan sends between Dstores.
+         */
+        public int moves() {
+            int moves = 0;
+            for (Map<String, List<Integer>> toSend : sends.values()) {
+                for (List<Integer> targets : toSend.values()) {
+                    moves += targets.size();
+                }
+            }
+            return moves;
+        }
+    }
+
+    /**
+     * A growable list of ints that removes by swapping in the last element.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void removeAt(int i) {
+            values[i] = values[--size];
+        }
+
+        boolean contains(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    removeAt(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    private final Map<String, Integer> copies;
+    private final Function<String, String> group;
+
+    // per object, by number
+    private String[] names;
+    private int[] wanted;
+    // the object's group, or null if it is a group of its own
+    private String[] groupOf;
+    private IntList[] original;
+    private IntList[] holders;
+    private int[] source;
+    private IntList[] targets;
+    private final BitSet touched = new BitSet();
+
+    // per Dstore, by number
+    private int[] ports;
+    private int[] load;
+    private int[] sendCount;
+    // objects each Dstore has or will get; an entry whose object has since left the Dstore is skipped and dropped
+    private IntList[] listed;
+    private List<Map<String, Integer>> groups;
+
+    private int floor;
+    private int ceil;
+
+    /**
+     * @param copies the objects that should exist and how many copies of each
+     * @param group  maps an object to its anti-affinity group; most objects are a group of their own
+     */
+    public RebalancePlanner(Map<String, Integer> copies, Function<String, String> group) {
+        this.copies = copies;
+        this.group = group;
+    }
+
+    /**
+     * Plans the rebalance of the objects the Dstores in allocation listed. Listed objects not in copies are ignored,
+     * as are objects in copies that no Dstore listed.
+     */
+    public Plan plan(Map<Integer, ? extends Collection<String>> allocation) {
+        index(allocation);
+        long total = 0;
+        for (int object = 0; object < names.length; object++) {
+            wanted[object] = Math.min(wanted[object], ports.length);
+            total += wanted[object];
+        }
+        floor = (int) (total / ports.length);
+        ceil = (int) ((total + ports.length - 1) / ports.length);
+
+        dropExtraCopies();
+        placeMissing(shedOverfull());
+        fillUnderfull();
+        return result();
+    }
+
+    private void index(Map<Integer, ? extends Collection<String>> allocation) {
+        int dstores = allocation.size();
+        ports = new int[dstores];
+        load = new int[dstores];
+        sendCount = new int[dstores];
+        listed = new IntList[dstores];
+        groups = new ArrayList<>(dstores);
+        Map<String, Integer> numbers = new HashMap<>(copies.size() * 2);
+        List<String> seen = new ArrayList<>();
+        int port = 0;
+        for (Integer number : allocation.keySet()) {
+            ports[port] = number;
+            listed[port] = new IntList();
+            groups.add(new HashMap<>());
+            for (String name : allocation.get(number)) {
+                Integer object = numbers.get(name);
+                if (object == null && copies.containsKey(name)) {
+                    object = seen.size();
+                    numbers.put(name, object);
+                    seen.add(name);
+                }
+                if (object != null) {
+                    listed[port].add(object);
+                }
+            }
+            port++;
+        }
+
+        int objects = seen.size();
+        names = seen.toArray(new String[0]);
+        wanted = new int[objects];
+        groupOf = new String[objects];
+        original = new IntList[objects];
+        holders = new IntList[objects];
+        source = new int[objects];
+        targets = new IntList[objects];
+        Arrays.fill(source, -1);
+        for (int object = 0; object < objects; object++) {
+            wanted[object] = copies.get(names[object]);
+            String owner = group.apply(names[object]);
+            groupOf[object] = owner.equals(names[object]) ? null : owner;
+            holders[object] = new IntList();
+        }
+        for (port = 0; port < dstores; port++) {
+            IntList own = listed[port];
+            for (int i = 0; i < own.size; ) {
+                int object = own.values[i];
+                // a Dstore that listed a name twice has one copy
+                if (holders[object].contains(port)) {
+                    own.removeAt(i);
+                } else {
+                    holders[object].add(port);
+                    addGroup(port, object);
+                    load[port]++;
+                    i++;
+                }
+            }
+        }
+        for (int object = 0; object < objects; object++) {
+            original[object] = new IntList();
+            for (int i = 0; i < holders[object].size; i++) {
+                original[object].add(holders[object].values[i]);
+            }
+        }
+    }
+
+    private void addGroup(int port, int object) {
+        if (groupOf[object] != null) {
+            groups.get(port).merge(groupOf[object], 1, Integer::sum);
+        }
+    }
+
+    private void removeGroup(int port, int object) {
+        if (groupOf[object] != null) {
+            groups.get(port).computeIfPresent(groupOf[object], (g, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * Whether port may take a copy of object: it doesn't have one and holds nothing else from the object's group.
+     */
+    private boolean accepts(int port, int object) {
+        return !holders[object].contains(port) && (groupOf[object] == null || !groups.get(port).containsKey(groupOf[object]));
+    }
+
+    private PriorityQueue<Integer> emptiestFirst() {
+        PriorityQueue<Integer> heap = new PriorityQueue<>((a, b) -> load[a] != load[b] ? Integer.compare(load[a], load[b]) : Integer.compare(a, b));
+        for (int port = 0; port < ports.length; port++) {
+            heap.add(port);
+        }
+        return heap;
+    }
+
+    private PriorityQueue<Integer> fullestFirst() {
+        PriorityQueue<Integer> heap = new PriorityQueue<>((a, b) -> load[a] != load[b] ? Integer.compare(load[b], load[a]) : Integer.compare(a, b));
+        for (int port = 0; port < ports.length; port++) {
+            heap.add(port);
+        }
+        return heap;
+    }
+
+    /**
+     * Plans object off port. Its entry in listed is left to be skipped later.
+     */
+    private void take(int port, int object) {
+        holders[object].remove(port);
+        removeGroup(port, object);
+        load[port]--;
+        touched.set(object);
+        if (!original[object].contains(port)) {
+            targets[object].remove(port);
+        }
+    }
+
+    /**
+     * Plans object onto port, sent from the object's source unless port had it all along.
+     */
+    private void give(int port, int object) {
+        holders[object].add(port);
+        addGroup(port, object);
+        load[port]++;
+        listed[port].add(object);
+        touched.set(object);
+        if (!original[object].contains(port)) {
+            chooseSource(object);
+            targets[object].add(port);
+        }
+    }
+
+    /**
+     * Picks the Dstore new copies of object are sent from: the original holder sending the least so far.
+     */
+    private void chooseSource(int object) {
+        if (source[object] >= 0) {
+            return;
+        }
+        IntList from = original[object];
+        int best = from.values[0];
+        for (int i = 1; i < from.size; i++) {
+            if (sendCount[from.values[i]] < sendCount[best]) {
+                best = from.values[i];
+            }
+        }
+        source[object] = best;
+        sendCount[best]++;
+        targets[object] = new IntList();
+    }
+
+    private void dropExtraCopies() {
+        for (int object = 0; object < names.length; object++) {
+            while (holders[object].size > wanted[object]) {
+                IntList current = holders[object];
+                int fullest = current.values[0];
+                for (int i = 1; i < current.size; i++) {
+                    if (load[current.values[i]] > load[fullest]) {
+                        fullest = current.values[i];
+                    }
+                }
+                take(fullest, object);
+            }
+        }
+    }
+
+    /**
+     * Takes objects off every Dstore above the ceiling, and off any Dstore holding two of one group. Returns the
+     * shed objects and the Dstores they came from as pairs, to be placed again.
+     */
+    private IntList shedOverfull() {
+        IntList shed = new IntList();
+        for (int port = 0; port < ports.length; port++) {
+            IntList own = listed[port];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < own.size; i++) {
+                int object = own.values[i];
+                if (holders[object].contains(port) && groupOf[object] != null && !seen.add(groupOf[object])) {
+                    take(port, object);
+                    shed.add(object);
+                    shed.add(port);
+                }
+            }
+            for (int i = own.size - 1; i >= 0 && load[port] > ceil; i--) {
+                int object = own.values[i];
+                if (holders[object].contains(port)) {
+                    take(port, object);
+                    shed.add(object);
+                    shed.add(port);
+                }
+            }
+        }
+        return shed;
+    }
+
+    /**
+     * Places the shed objects and then every missing copy on the emptiest Dstores that accept them. A shed object
+     * that fits nowhere stays where it was.
+     */
+    private void placeMissing(IntList shed) {
+        PriorityQueue<Integer> emptiest = emptiestFirst();
+        for (int i = 0; i < shed.size; i += 2) {
+            int object = shed.values[i];
+            int from = shed.values[i + 1];
+            if (!place(emptiest, object, ceil)) {
+                emptiest.remove(from);
+                give(from, object);
+                emptiest.add(from);
+            }
+        }
+        for (int object = 0; object < names.length; object++) {
+            while (holders[object].size < wanted[object] && place(emptiest, object, Integer.MAX_VALUE)) {
+                // placed one more copy
+            }
+        }
+    }
+
+    /**
+     * Gives object to the emptiest Dstore below limit that accepts it. Returns false if there is none.
+     */
+    private boolean place(PriorityQueue<Integer> emptiest, int object, int limit) {
+        List<Integer> skipped = new ArrayList<>();
+        Integer target = null;
+        while (!emptiest.isEmpty() && load[emptiest.peek()] < limit) {
+            Integer port = emptiest.poll();
+            if (accepts(port, object)) {
+                target = port;
+                break;
+            }
+            skipped.add(port);
+        }
+        if (target != null) {
+            give(target, object);
+            emptiest.add(target);
+        }
+        emptiest.addAll(skipped);
+        return target != null;
+    }
+
+    /**
+     * Moves objects from the fullest Dstores onto those below the floor, one at a time.
+     */
+    private void fillUnderfull() {
+        PriorityQueue<Integer> emptiest = emptiestFirst();
+        PriorityQueue<Integer> fullest = fullestFirst();
+        while (!emptiest.isEmpty() && load[emptiest.peek()] < floor) {
+            int receiver = emptiest.poll();
+            // out of both heaps while its load changes, then back in at its new position
+            fullest.remove(receiver);
+            List<Integer> skipped = new ArrayList<>();
+            boolean moved = false;
+            while (!moved && !fullest.isEmpty() && load[fullest.peek()] > floor) {
+                int donor = fullest.poll();
+                moved = moveOne(donor, receiver);
+                skipped.add(donor);
+            }
+            fullest.addAll(skipped);
+            fullest.add(receiver);
+            if (moved) {
+                emptiest.add(receiver);
+            }
+        }
+    }
+
+    /**
+     * Moves one object from donor that receiver accepts, dropping entries for objects that already left donor.
+     */
+    private boolean moveOne(int donor, int receiver) {
+        IntList own = listed[donor];
+        for (int i = own.size - 1; i >= 0; i--) {
+            int object = own.values[i];
+            if (!holders[object].contains(donor)) {
+                own.removeAt(i);
+            } else if (accepts(receiver, object)) {
+                own.removeAt(i);
+                take(donor, object);
+                give(receiver, object);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Plan result() {
+        Map<Integer, Map<String, List<Integer>>> sends = new TreeMap<>();
+        Map<Integer, List<String>> removes = new TreeMap<>();
+        for (int object = touched.nextSetBit(0); object >= 0; object = touched.nextSetBit(object + 1)) {
+            if (targets[object] != null && targets[object].size > 0) {
+                List<Integer> to = new ArrayList<>(targets[object].size);
+                for (int i = 0; i < targets[object].size; i++) {
+                    to.add(ports[targets[object].values[i]]);
+                }
+                sends.computeIfAbsent(ports[source[object]], p -> new LinkedHashMap<>()).put(names[object], to);
+            }
+            for (int i = 0; i < original[object].size; i++) {
+                int port = original[object].values[i];
+                if (!holders[object].contains(port)) {
+                    removes.computeIfAbsent(ports[port], p -> new ArrayList<>()).add(names[object]);
+                }
+            }
+        }
+        Map<String, List<Integer>> placement = new HashMap<>(names.length * 2);
+        for (int object = 0; object < names.length; object++) {
+            Integer[] at = new Integer[holders[object].size];
+            for (int i = 0; i < at.length; i++) {
+                at[i] = ports[holders[object].values[i]];
+            }
+            placement.put(names[object], List.of(at));
+        }
+        return new Plan(sends, removes, placement);
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.stream.IntStream;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8) with k data shards and m parity shards; any k of the k + m shards are
+ * enough to rebuild the others. The encoding matrix is a (k + m) x k Vandermonde matrix multiplied by the inverse of
+ * its top k rows, so the first k shards are the data itself.
+ *
+ * Every method works on a byte range of the shard arrays and keeps no per-call state, so ranges of one stripe can be
+ * encoded or decoded on several threads at once.
+ */
+public class ReedSolomon {
+    private static final int MIN_SLICE = 64 * 1024;
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    private static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if ((x & 0x100) != 0) {
+                x ^= 0x11D;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    final int k;
+    final int m;
+    private final byte[][] matrix;
+
+    public ReedSolomon(int k, int m) {
+        if (k < 1 || m < 0 || k + m > 256) {
+            throw new IllegalArgumentException("Unsupported erasure code " + k + "+" + m);
+        }
+        this.k = k;
+        this.m = m;
+        byte[][] vandermonde = new byte[k + m][k];
+        for (int r = 0; r < k + m; r++) {
+            for (int c = 0; c < k; c++) {
+                vandermonde[r][c] = power((byte) r, c);
+            }
+        }
+        byte[][] top = new byte[k][];
+        System.arraycopy(vandermonde, 0, top, 0, k);
+        matrix = multiply(vandermonde, invert(top));
+    }
+
+    private static byte power(byte a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a & 0xFF] * n) % 255];
+    }
+
+    private static byte divide(byte a, byte b) {
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xFF] - LOG[b & 0xFF] + 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] product = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte sum = 0;
+                for (int i = 0; i < b.length; i++) {
+                    sum ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+                }
+                product[r][c] = sum;
+            }
+        }
+        return product;
+    }
+
+    /**
+     * Gauss-Jordan inversion of a square matrix.
+     */
+    private static byte[][] invert(byte[][] square) {
+        int n = square.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(square[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Singular matrix");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+            byte scale = work[c][c];
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = divide(work[c][i], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                byte factor = work[r][c];
+                if (r != c && factor != 0) {
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= MUL[factor & 0xFF][work[c][i] & 0xFF];
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        }
+        return inverse;
+    }
+
+    private static void multiplyAdd(byte factor, byte[] in, byte[] out, int offset, int length) {
+        if (factor == 0) {
+            return;
+        }
+        byte[] row = MUL[factor & 0xFF];
+        for (int i = offset; i < offset + length; i++) {
+            out[i] ^= row[in[i] & 0xFF];
+        }
+    }
+
+    private void combine(byte[] coefficients, byte[][] inputs, byte[] out, int offset, int length) {
+        java.util.Arrays.fill(out, offset, offset + length, (byte) 0);
+        for (int i = 0; i < coefficients.length; i++) {
+            multiplyAdd(coefficients[i], inputs[i], out, offset, length);
+        }
+    }
+
+    /**
+     * Fills the m parity shards (shards[k .. k + m)) from the k data shards over the given range.
+     */
+    public void encode(byte[][] shards, int offset, int length) {
+        byte[][] data = new byte[k][];
+        System.arraycopy(shards, 0, data, 0, k);
+        for (int p = 0; p < m; p++) {
+            combine(matrix[k + p], data, shards[k + p], offset, length);
+        }
+    }
+
+    /**
+     * Rebuilds every data shard not marked present, over the given range, from the first k present ones. Missing
+     * parity shards are only rebuilt if parity is true; a load has no use for them.
+     */
+    public void decode(byte[][] shards, boolean[] present, boolean parity, int offset, int length) {
+        int[] rows = new int[k];
+        int found = 0;
+        for (int i = 0; i < k + m && found < k; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < k) {
+            throw new IllegalArgumentException("Only " + found + " of " + k + " shards needed to decode are present");
+        }
+        byte[][] sub = new byte[k][];
+        byte[][] inputs = new byte[k][];
+        for (int i = 0; i < k; i++) {
+            sub[i] = matrix[rows[i]];
+            inputs[i] = shards[rows[i]];
+        }
+        byte[][] inverse = invert(sub);
+        for (int d = 0; d < k; d++) {
+            if (!present[d]) {
+                combine(inverse[d], inputs, shards[d], offset, length);
+            }
+        }
+        if (!parity) {
+            return;
+        }
+        byte[][] data = new byte[k][];
+        System.arraycopy(shards, 0, data, 0, k);
+        for (int p = 0; p < m; p++) {
+            if (!present[k + p]) {
+                combine(matrix[k + p], data, shards[k + p], offset, length);
+            }
+        }
+    }
+
+    /**
+     * encode over [0, length), split into slices that are encoded on several cores at once.
+     */
+    public void encode(byte[][] shards, int length) {
+        inSlices(length, (offset, slice) -> encode(shards, offset, slice));
+    }
+
+    /**
+     * decode over [0, length), split into slices that are decoded on several cores at once.
+     */
+    public void decode(byte[][] shards, boolean[] present, boolean parity, int length) {
+        inSlices(length, (offset, slice) -> decode(shards, present, parity, offset, slice));
+    }
+
+    private static void inSlices(int length, java.util.function.BiConsumer<Integer, Integer> work) {
+        int slices = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), length / MIN_SLICE));
+        int step = (length + slices - 1) / slices;
+        IntStream.range(0, slices).parallel().forEach(i -> {
+            int offset = i * step;
+            work.accept(offset, Math.min(step, length - offset));
+        });
+    }
+
+    /**
+     * The length of each shard of a file of the given size: the file is cut into k equal data shards, the last one
+     * padded with zeros.
+     */
+    public static long shardSize(long size, int k) {
+        return (size + k - 1) / k;
+    }
+}
@@ -0,0 +1,214 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Chooses which replica of a file a client loads from. For each Dstore it tracks the loads it has been handed that
+ * have not finished yet and a moving average of how long recent ones took, and picks by power of two choices: of two
+ * holders drawn at random, the one with the lower (outstanding + 1) * latency. Reads of a popular file so spread over
+ * all its replicas, leaning away from a Dstore that is busy or slow, without the herding onto one replica that always
+ * taking the least-loaded causes when many loads are chosen at once.
+ *
+ * A load counts as finished when its Dstore reports LOAD_DONE for it, so its latency runs from being handed out to the
+ * last byte sent and leaves out whatever the client does next. It counts as failed if the client sends RELOAD instead.
+ * A load still unfinished after expiry ms stops counting as outstanding and gives no latency sample: its client has
+ * most likely simply gone quiet. A latency not sampled again for expiry ms is forgotten, so a Dstore that was slow for
+ * a while gets chosen again once the selector has stopped hearing of it.
+ *
+ * A client whose load is slow to start may ask for a second replica to race against the first. Such hedges are paid
+ * for out of a budget that starts full and that every ordinary load adds hedgeRatio to, up to hedgeBurst, so however
+ * slow the Dstores get hedging never adds more than about hedgeRatio extra loads.
+ *
+ * Every method is synchronized, like DstoreLoads.
+ */
+public class ReplicaSelector {
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * One load handed to a Dstore.
+     */
+    public static final class Load {
+        private final int port;
+        private final String object;
+        private final long started = System.nanoTime();
+
+        private Load(int port, String object) {
+            this.port = port;
+            this.object = object;
+        }
+
+        public int port() {
+            return port;
+        }
+    }
+
+    private static final class Replica {
+        // oldest first
+        private final ArrayDeque<Load> outstanding = new ArrayDeque<>();
+        // nanoseconds, or -1 before the first sample
+        private double latency = -1;
+        private long sampled;
+    }
+
+    private final String mode;
+    private final long expiry;
+    private final Map<Integer, Replica> replicas = new HashMap<>();
+    private final double hedgeRatio;
+    private final double hedgeBurst;
+    private double hedgeBudget;
+    private long loads;
+    private long hedges;
+
+    /**
+     * @param mode       "p2c" for power of two choices, "least" for the lowest cost of all holders, "first" for the
+     *                   first holder every time
+     * @param expiry     ms after which an unfinished load is forgotten
+     * @param hedgeRatio the hedges allowed per load
+     * @param hedgeBurst the most hedges that can be saved up
+     */
+    public ReplicaSelector(String mode, long expiry, double hedgeRatio, double hedgeBurst) {
+        if (!mode.equals("p2c") && !mode.equals("least") && !mode.equals("first")) {
+            throw new IllegalArgumentException("Unknown replica selection mode: " + mode);
+        }
+        this.mode = mode;
+        this.expiry = expiry * 1_000_000;
+        this.hedgeRatio = hedgeRatio;
+        this.hedgeBurst = hedgeBurst;
+        this.hedgeBudget = hedgeBurst;
+    }
+
+    public synchronized void join(int port) {
+        replicas.put(port, new Replica());
+    }
+
+    public synchronized void leave(int port) {
+        replicas.remove(port);
+    }
+
+    /**
+     * Picks a holder of object that has joined and is not in tried, and counts a load on it. Returns null if there is
+     * none.
+     */
+    public synchronized Load start(String object, List<Integer> holders, Collection<Integer> tried) {
+        Load load = pick(object, holders, tried);
+        if (load != null) {
+            loads++;
+            hedgeBudget = Math.min(hedgeBurst, hedgeBudget + hedgeRatio);
+        }
+        return load;
+    }
+
+    /**
+     * Like start, for a second load of a file raced against one already under way. Returns null if there is no other
+     * holder or no budget left for a hedge.
+     */
+    public synchronized Load hedge(String object, List<Integer> holders, Collection<Integer> tried) {
+        if (hedgeBudget < 1) {
+            return null;
+        }
+        Load load = pick(object, holders, tried);
+        if (load != null) {
+            hedgeBudget--;
+            hedges++;
+        }
+        return load;
+    }
+
+    /**
+     * How many of the loads so far have been hedged, for the log.
+     */
+    public synchronized String hedgeStats() {
+        return hedges + " of " + loads + " loads hedged";
+    }
+
+    private Load pick(String object, List<Integer> holders, Collection<Integer> tried) {
+        List<Integer> candidates = new ArrayList<>(holders.size());
+        for (Integer port : holders) {
+            if (replicas.containsKey(port) && !tried.contains(port)) {
+                candidates.add(port);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        long now = System.nanoTime();
+        int chosen = candidates.getFirst();
+        if (mode.equals("p2c") && candidates.size() > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(candidates.size());
+            int b = random.nextInt(candidates.size() - 1);
+            int other = candidates.get(b >= a ? b + 1 : b);
+            chosen = candidates.get(a);
+            if (cost(other, now) < cost(chosen, now)) {
+                chosen = other;
+            }
+        } else if (mode.equals("least")) {
+            for (Integer port : candidates) {
+                if (cost(port, now) < cost(chosen, now)) {
+                    chosen = port;
+                }
+            }
+        }
+        Load load = new Load(chosen, object);
+        replicas.get(chosen).outstanding.addLast(load);
+        return load;
+    }
+
+    private double cost(int port, long now) {
+        Replica replica = replicas.get(port);
+        while (!replica.outstanding.isEmpty() && now - replica.outstanding.getFirst().started > expiry) {
+            replica.outstanding.removeFirst();
+        }
+        if (replica.latency >= 0 && now - replica.sampled > expiry) {
+            replica.latency = -1;
+        }
+        double latency = replica.latency;
+        if (latency < 0) {
+            // a Dstore that has not served a load yet is taken to be as fast as the others
+            double sum = 0;
+            int known = 0;
+            for (Replica other : replicas.values()) {
+                if (other.latency >= 0) {
+                    sum += other.latency;
+                    known++;
+                }
+            }
+            latency = known == 0 ? 1 : sum / known;
+        }
+        return (replica.outstanding.size() + 1) * latency;
+    }
+
+    /**
+     * The client has moved on from a load. A failed one, or one slow enough to be hedged, ends here and is sampled as
+     * having taken the whole expiry; any other is left for its Dstore to report done.
+     */
+    public synchronized void finish(Load load, boolean failed) {
+        Replica replica = replicas.get(load.port);
+        if (failed && replica != null && replica.outstanding.remove(load)) {
+            sample(replica, expiry);
+        }
+    }
+
+    /**
+     * The Dstore on port has sent a client all of object: ends the oldest load of it outstanding there, sampled from
+     * when it was handed out. A report that matches no load, such as a Dstore reading a shard from another, is ignored.
+     */
+    public synchronized void done(int port, String object) {
+        Replica replica = replicas.get(port);
+        if (replica == null) {
+            return;
+        }
+        for (Iterator<Load> loads = replica.outstanding.iterator(); loads.hasNext(); ) {
+            Load load = loads.next();
+            if (load.object.equals(object)) {
+                loads.remove();
+                sample(replica, System.nanoTime() - load.started);
+                return;
+            }
+        }
+    }
+
+    private void sample(Replica replica, double sample) {
+        replica.latency = replica.latency < 0 ? sample : replica.latency + SMOOTHING * (sample - replica.latency);
+        replica.sampled = System.nanoTime();
+    }
+}
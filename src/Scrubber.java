@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+
+/**
+ * Reads every file a Dstore holds, pass after pass, and checks each against the CRC32C it was stored with, so a copy
+ * that has rotted on disk is found and replaced while the other replicas are still good rather than when a client
+ * next loads it. Reading is capped at a set number of bytes a second on a low-priority thread, so the scrub takes
+ * little from the LOADs and STOREs being served. A file that fails is handed to Dstore.checkCorrupt, which removes it
+ * and tells the Controller.
+ */
+public class Scrubber {
+    private static final int BUFFER = 256 * 1024;
+
+    private final Dstore dstore;
+    private final TransferScheduler.TokenBucket bandwidth;
+    private final long interval;
+
+    /**
+     * @param bytesPerSecond the most the scrub reads
+     * @param interval       ms to wait between the end of one pass and the start of the next
+     */
+    public Scrubber(Dstore dstore, long bytesPerSecond, long interval) {
+        this.dstore = dstore;
+        this.bandwidth = new TransferScheduler.TokenBucket(bytesPerSecond);
+        this.interval = interval;
+    }
+
+    public void start() {
+        Thread.ofPlatform().name("scrubber").priority(Thread.MIN_PRIORITY).daemon().start(() -> {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER);
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                scrub(buffer);
+            }
+        });
+    }
+
+    /**
+     * One pass over the files held when it starts; one stored or replaced meanwhile waits for the next.
+     */
+    private void scrub(ByteBuffer buffer) {
+        long start = System.nanoTime();
+        int checked = 0;
+        int corrupt = 0;
+        long bytes = 0;
+        for (String filename : List.copyOf(dstore.files.keySet())) {
+            Long checksum = dstore.files.checksum(filename);
+            if (checksum == null) {
+                continue;
+            }
+            boolean failed;
+            try (Dstore.Span file = dstore.open(filename)) {
+                failed = file.checksum(buffer, bandwidth) != checksum;
+                bytes += file.length();
+            } catch (NoSuchFileException e) {
+                // removed since the pass started
+                continue;
+            } catch (IOException e) {
+                failed = true;
+            }
+            checked++;
+            if (failed && dstore.checkCorrupt(filename)) {
+                corrupt++;
+            }
+        }
+        if (checked > 0) {
+            System.out.println("Scrubbed " + checked + " files, " + bytes / 1024 + " KB, in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms: " + corrupt + " corrupt");
+        }
+    }
+}
@@ -0,0 +1,322 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Packs a Dstore's small files into large append-only segment files, so millions of small files take a few thousand
+ * files on disk instead of an inode and a directory entry each. A segment is a run of records, either a put carrying a
+ * file's name and bytes or a delete carrying just the name, and the latest record for a name wins. Where each packed
+ * file lives is kept in memory and rebuilt at startup from the record headers alone, skipping over the data.
+ *
+ * Removing or replacing a packed file only appends; its old bytes stay behind as garbage. A background compactor
+ * copies the live records out of any full segment that has become mostly garbage onto the end of the current one and
+ * then deletes it. A reader that looked a file up just before its segment went is sent to the file's new place.
+ *
+ * Every write happens under the store's lock, one segment being appended to at a time. Reads open the segment
+ * themselves and take no lock.
+ */
+public class SegmentStore {
+    static final String FOLDER = ".segments";
+    private static final String SEGMENT = "segment-";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte[] EMPTY = new byte[0];
+    // type, name length, data length, CRC32C of the data, CRC32C of the header fields and the name
+    private static final int HEADER = 1 + 4 + 8 + 4 + 4;
+
+    /**
+     * A record: the segment it is in, where it starts, and where and how long the data it carries is.
+     */
+    private record Location(long segment, long record, long data, long length, long checksum) {
+        long size() {
+            return data - record + length;
+        }
+    }
+
+    private final Path folder;
+    private final long threshold;
+    private final long segmentSize;
+    private final double compactBelow;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    // bytes of each segment that are still needed: live puts, and deletes that may hide a put in an older segment
+    private final Map<Long, Long> live = new HashMap<>();
+    private long active;
+    private long written;
+    private FileChannel out;
+
+    /**
+     * Rebuilds the index from the segments under folder and starts a new segment to append to.
+     *
+     * @param threshold    the largest file that is packed
+     * @param segmentSize  how large a segment grows before the next one is started
+     * @param compactBelow the fraction of a full segment that must still be needed for it to be left alone
+     */
+    public SegmentStore(Path folder, long threshold, long segmentSize, double compactBelow) throws IOException {
+        this.folder = folder.resolve(FOLDER);
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        this.compactBelow = compactBelow;
+        Files.createDirectories(this.folder);
+        long start = System.nanoTime();
+        TreeMap<Long, Path> segments = segments();
+        for (Map.Entry<Long, Path> segment : segments.entrySet()) {
+            live.put(segment.getKey(), 0L);
+            replay(segment.getKey(), segment.getValue());
+        }
+        active = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        out = open(active);
+        if (!segments.isEmpty()) {
+            System.out.println("Found " + index.size() + " packed files in " + segments.size() + " segments in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    public boolean packs(long size) {
+        return size <= threshold;
+    }
+
+    public boolean contains(String filename) {
+        return index.containsKey(filename);
+    }
+
+    /**
+     * Adds every packed file to inventory with its size and checksum.
+     */
+    public void listInto(Inventory inventory) {
+        index.forEach((filename, at) -> inventory.put(filename, String.valueOf(at.length()), at.checksum()));
+    }
+
+    private TreeMap<Long, Path> segments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> listing = Files.list(folder)) {
+            listing.filter(path -> path.getFileName().toString().startsWith(SEGMENT))
+                    .forEach(path -> segments.put(Long.parseLong(path.getFileName().toString().substring(SEGMENT.length())), path));
+        }
+        return segments;
+    }
+
+    private Path path(long segment) {
+        return folder.resolve(SEGMENT + segment);
+    }
+
+    private FileChannel open(long segment) throws IOException {
+        live.putIfAbsent(segment, 0L);
+        written = 0;
+        return FileChannel.open(path(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the headers of one segment into the index, cutting off a record that was only partly written.
+     */
+    private void replay(long segment, Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            for (long position = 0; position < size; ) {
+                header.clear();
+                while (header.hasRemaining() && in.read(header, position + header.position()) > 0) {
+                }
+                header.flip();
+                byte[] name = null;
+                long length = -1;
+                if (header.remaining() == HEADER) {
+                    byte type = header.get();
+                    int nameLength = header.getInt();
+                    length = header.getLong();
+                    long checksum = header.getInt() & 0xffffffffL;
+                    int expected = header.getInt();
+                    if (nameLength >= 0 && length >= 0 && position + HEADER + nameLength + length <= size) {
+                        ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength);
+                        while (nameBuffer.hasRemaining() && in.read(nameBuffer, position + HEADER + nameBuffer.position()) > 0) {
+                        }
+                        name = nameBuffer.array();
+                        CRC32C crc = new CRC32C();
+                        crc.update(header.array(), 0, HEADER - 4);
+                        crc.update(name);
+                        if ((int) crc.getValue() != expected || (type != PUT && type != DELETE)) {
+                            name = null;
+                        } else {
+                            String filename = new String(name, StandardCharsets.UTF_8);
+                            Location at = new Location(segment, position, position + HEADER + nameLength, length, checksum);
+                            if (type == PUT) {
+                                track(filename, at);
+                            } else {
+                                untrack(filename);
+                                live.merge(segment, at.size(), Long::sum);
+                            }
+                        }
+                    }
+                }
+                if (name == null) {
+                    System.out.println("Cutting " + path.getFileName() + " at byte " + position + ": damaged record");
+                    in.truncate(position);
+                    return;
+                }
+                position += HEADER + name.length + length;
+            }
+        }
+    }
+
+    private void track(String filename, Location at) {
+        live.merge(at.segment(), at.size(), Long::sum);
+        untrack(filename);
+        index.put(filename, at);
+    }
+
+    private void untrack(String filename) {
+        Location before = index.remove(filename);
+        if (before != null) {
+            live.merge(before.segment(), -before.size(), Long::sum);
+        }
+    }
+
+    private Location append(byte type, String filename, byte[] data, int length, long checksum) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + name.length + length);
+        record.put(type).putInt(name.length).putLong(length).putInt((int) checksum);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, HEADER - 4);
+        crc.update(name);
+        record.putInt((int) crc.getValue()).put(name).put(data, 0, length).flip();
+        while (record.hasRemaining()) {
+            out.write(record);
+        }
+        Location at = new Location(active, written, written + HEADER + name.length, length, checksum);
+        written += at.size();
+        if (written >= segmentSize) {
+            out.close();
+            out = open(++active);
+        }
+        return at;
+    }
+
+    /**
+     * Packs a file, replacing any packed file of the same name.
+     */
+    public synchronized void put(String filename, byte[] data, int length, long checksum) throws IOException {
+        track(filename, append(PUT, filename, data, length, checksum));
+    }
+
+    /**
+     * Removes a packed file. Returns false if the file is not packed here.
+     */
+    public synchronized boolean remove(String filename) throws IOException {
+        if (!index.containsKey(filename)) {
+            return false;
+        }
+        untrack(filename);
+        Location deleted = append(DELETE, filename, EMPTY, 0, 0);
+        live.merge(deleted.segment(), deleted.size(), Long::sum);
+        return true;
+    }
+
+    /**
+     * Opens a packed file for reading, or returns null if it is not packed here.
+     */
+    public Dstore.Span open(String filename) throws IOException {
+        while (true) {
+            Location at = index.get(filename);
+            if (at == null) {
+                return null;
+            }
+            try {
+                return new Dstore.Span(FileChannel.open(path(at.segment()), StandardOpenOption.READ), at.data(), at.length());
+            } catch (NoSuchFileException e) {
+                // compacted away just now; the index already points at the copy, unless the file went too
+                if (at.equals(index.get(filename))) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compacts the segments every interval ms on a low-priority thread.
+     */
+    public void startCompactor(long interval) {
+        Thread.ofPlatform().name("segment-compactor").priority(Thread.MIN_PRIORITY).daemon().start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    for (long segment : victims()) {
+                        compact(segment);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Couldn't compact segments: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * The full segments of which less than compactBelow is still needed.
+     */
+    private synchronized List<Long> victims() throws IOException {
+        List<Long> victims = new ArrayList<>();
+        for (Map.Entry<Long, Path> segment : segments().entrySet()) {
+            if (segment.getKey() != active
+                    && live.getOrDefault(segment.getKey(), 0L) < compactBelow * Files.size(segment.getValue())) {
+                victims.add(segment.getKey());
+            }
+        }
+        return victims;
+    }
+
+    /**
+     * Copies what is still needed of a full segment onto the end of the current one and deletes it. A put is copied if
+     * the index still points at it, and a delete if the file is still gone and an older segment might hold a put the
+     * delete has to keep hidden on the next startup.
+     */
+    private void compact(long segment) throws IOException {
+        Path path = path(segment);
+        long size = Files.size(path);
+        int copied = 0;
+        long kept = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            for (long position = 0; position < size; ) {
+                byte type = in.readByte();
+                int nameLength = in.readInt();
+                long length = in.readLong();
+                long checksum = in.readInt() & 0xffffffffL;
+                in.readInt();
+                String filename = new String(in.readNBytes(nameLength), StandardCharsets.UTF_8);
+                byte[] data = in.readNBytes((int) length);
+                long record = position;
+                position += HEADER + nameLength + length;
+                synchronized (this) {
+                    Location at = index.get(filename);
+                    if (type == PUT && at != null && at.segment() == segment && at.record() == record) {
+                        track(filename, append(PUT, filename, data, data.length, checksum));
+                        copied++;
+                        kept += HEADER + nameLength + length;
+                    } else if (type == DELETE && at == null && live.keySet().stream().anyMatch(older -> older < segment)) {
+                        Location deleted = append(DELETE, filename, EMPTY, 0, 0);
+                        live.merge(deleted.segment(), deleted.size(), Long::sum);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            live.remove(segment);
+            Files.delete(path);
+        }
+        System.out.println("Compacted " + path.getFileName() + ": kept " + copied + " files, freed " + (size - kept) / 1024 + " KB");
+    }
+}
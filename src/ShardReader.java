@@ -0,0 +1,147 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams the shards of an erasure-coded file from the Dstores that hold them, one stripe at a time. Only k shards are
+ * read, data shards first so a healthy file needs no decoding. A shard that is lost, or whose Dstore fails part way,
+ * is replaced by another shard from the same offset, and whatever did not arrive is decoded from the k that did.
+ * Used by ExtendedClient to load a file and by Dstore to rebuild a lost shard.
+ */
+public class ShardReader implements Closeable {
+    static final int STRIPE = 1 << 20;
+
+    private final String name;
+    private final ReedSolomon code;
+    private final long shardSize;
+    // Dstore port of each shard, or "-" if the shard has no holder
+    private final String[] ports;
+    private final int timeout;
+    private final boolean parity;
+    private final ExecutorService pool;
+    private final Socket[] sources;
+    private final boolean[] failed;
+    final byte[][] shards;
+    private long position = 0;
+
+    public ShardReader(String name, ReedSolomon code, long shardSize, String[] ports, int timeout, boolean parity) {
+        this.name = name;
+        this.code = code;
+        this.shardSize = shardSize;
+        this.ports = ports;
+        this.timeout = timeout;
+        this.parity = parity;
+        this.pool = Executors.newFixedThreadPool(code.k);
+        this.sources = new Socket[ports.length];
+        this.failed = new boolean[ports.length];
+        this.shards = new byte[ports.length][(int) Math.min(STRIPE, Math.max(shardSize, 1))];
+    }
+
+    private String object(int shard) {
+        return name + Protocol.SHARD_NAME_SEPARATOR + shard;
+    }
+
+    /**
+     * Makes sure k shards are being read, opening new sources at the current offset for any that are missing.
+     */
+    private void open() throws IOException {
+        int open = 0;
+        for (Socket source : sources) {
+            if (source != null) {
+                open++;
+            }
+        }
+        for (int i = 0; i < ports.length && open < code.k; i++) {
+            if (sources[i] != null || failed[i] || ports[i].equals("-")) {
+                continue;
+            }
+            try {
+                Socket source = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(ports[i]));
+                source.setSoTimeout(timeout);
+                String request = position == 0
+                        ? Protocol.LOAD_DATA_TOKEN + " " + object(i)
+                        : Protocol.LOAD_DATA_RANGE_TOKEN + " " + object(i) + " " + position + " " + (shardSize - position);
+                source.getOutputStream().write((request + "\n").getBytes());
+                sources[i] = source;
+                open++;
+            } catch (IOException e) {
+                failed[i] = true;
+            }
+        }
+        if (open < code.k) {
+            throw new IOException("Only " + open + " of the " + code.k + " shards needed to read " + name + " are available");
+        }
+    }
+
+    private void drop(int shard) {
+        try {
+            sources[shard].close();
+        } catch (IOException ignored) {
+        }
+        sources[shard] = null;
+        failed[shard] = true;
+    }
+
+    /**
+     * Reads the next length bytes of the shards into shards[i][0, length). Every data shard is filled, and every
+     * parity shard too if the reader was built with parity set.
+     */
+    public void next(int length) throws IOException {
+        boolean[] present = new boolean[ports.length];
+        int arrived = 0;
+        while (arrived < code.k) {
+            open();
+            List<Integer> reading = new ArrayList<>();
+            List<Future<Integer>> reads = new ArrayList<>();
+            for (int i = 0; i < ports.length; i++) {
+                if (sources[i] != null && !present[i]) {
+                    InputStream in = sources[i].getInputStream();
+                    byte[] shard = shards[i];
+                    reading.add(i);
+                    reads.add(pool.submit(() -> in.readNBytes(shard, 0, length)));
+                }
+            }
+            for (int r = 0; r < reads.size(); r++) {
+                int shard = reading.get(r);
+                try {
+                    if (reads.get(r).get() != length) {
+                        throw new ExecutionException(new EOFException(object(shard) + " ended early"));
+                    }
+                    present[shard] = true;
+                    arrived++;
+                } catch (ExecutionException e) {
+                    System.out.println("Lost shard " + object(shard) + " at byte " + position + ": " + e.getCause().getMessage());
+                    drop(shard);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        position += length;
+        code.decode(shards, present, parity, length);
+    }
+
+    @Override
+    public void close() {
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] != null) {
+                try {
+                    sources[i].close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        pool.shutdownNow();
+    }
+}
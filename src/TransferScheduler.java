@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the REBALANCE_STORE sends a Dstore makes to its peers. Sends run in parallel on a fixed pool of threads, over
+ * connections to each peer that are kept open and reused from one file and one rebalance to the next, and stream the
+ * file with transferTo so it never passes through the heap. All sends share one token bucket, so a rebalance can be
+ * capped well below the link speed and leave room for the LOADs and STOREs clients make meanwhile.
+ *
+ * Every connection switches to binary frames as soon as it opens, since peers are always Dstores of the same build.
+ */
+public class TransferScheduler {
+    // bytes sent per transferTo call when throttled; small enough that the cap holds over a fraction of a second
+    private static final long SLICE = 256 * 1024;
+
+    private final InetAddress host;
+    private final int timeout;
+    private final ExecutorService pool;
+    private final Map<Integer, ConcurrentLinkedDeque<Peer>> idle = new ConcurrentHashMap<>();
+    private final TokenBucket bandwidth;
+
+    /**
+     * @param threads        how many sends run at once
+     * @param bytesPerSecond the cap on all sends together, or 0 for none
+     */
+    public TransferScheduler(InetAddress host, int timeout, int threads, long bytesPerSecond) {
+        this.host = host;
+        this.timeout = timeout;
+        this.pool = Executors.newFixedThreadPool(threads, Thread.ofPlatform().name("transfer-", 0)
+                .priority(Thread.MIN_PRIORITY).daemon().factory());
+        this.bandwidth = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    /**
+     * An open connection to another Dstore's client port, speaking binary frames.
+     */
+    private static class Peer {
+        final int port;
+        final SocketChannel channel;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Wire.Frame frame = new Wire.Frame();
+        int request = 0;
+        // true once the connection has carried a file, after which the peer may have closed it while it sat idle
+        boolean used = false;
+
+        Peer(int port, SocketChannel channel) throws IOException {
+            this.port = port;
+            this.channel = channel;
+            this.out = new DataOutputStream(new BufferedOutputStream(channel.socket().getOutputStream()));
+            out.write((Wire.HELLO + "\n").getBytes());
+            out.flush();
+            if (!Wire.HELLO.equals(ExtendedClient.readLine(channel.socket().getInputStream()))) {
+                throw new IOException("Dstore " + port + " does not speak binary frames");
+            }
+            this.in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private Peer acquire(int port) throws IOException {
+        Peer peer = idle.computeIfAbsent(port, p -> new ConcurrentLinkedDeque<>()).pollFirst();
+        if (peer != null) {
+            return peer;
+        }
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setSoTimeout(timeout);
+        try {
+            return new Peer(port, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void release(Peer peer) {
+        peer.used = true;
+        idle.computeIfAbsent(peer.port, p -> new ConcurrentLinkedDeque<>()).offerFirst(peer);
+    }
+
+    /**
+     * Sends every file in sends, read from source, to each of the ports it maps to. The future completes once all have
+     * been sent, or exceptionally as soon as one could not be.
+     */
+    public CompletableFuture<Void> sendAll(Map<String, List<Integer>> sends, Dstore source) {
+        List<CompletableFuture<Void>> transfers = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> send : sends.entrySet()) {
+            String filename = send.getKey();
+            for (Integer port : send.getValue()) {
+                transfers.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        send(source, filename, port);
+                    } catch (IOException e) {
+                        throw new RuntimeException("Couldn't send " + filename + " to Dstore " + port + ": " + e.getMessage(), e);
+                    }
+                }, pool));
+            }
+        }
+        return CompletableFuture.allOf(transfers.toArray(CompletableFuture<?>[]::new));
+    }
+
+    /**
+     * Sends one file over a pooled connection, with transferTo and without reading it first. The CRC32C it was stored
+     * with goes with it, and the receiver checks what arrived against it and acknowledges once it has. A send the
+     * receiver refuses has the copy held here checked, so a damaged copy is reported rather than spread.
+     */
+    private void send(Dstore source, String filename, int port) throws IOException {
+        Long checksum = source.files.checksum(filename);
+        if (checksum == null) {
+            throw new IOException("no longer held here");
+        }
+        try (Dstore.Span file = source.open(filename)) {
+            send(file, filename, checksum, port);
+        } catch (IOException e) {
+            if (source.checkCorrupt(filename)) {
+                throw new Dstore.CorruptFileException("the copy held here is corrupt");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A reused connection that turns out to be dead before the file has gone is dropped and the send is tried once
+     * more over a new one. Once the file has gone, a failure means the receiver refused it, and is not retried.
+     */
+    private void send(Dstore.Span file, String filename, long checksum, int port) throws IOException {
+        while (true) {
+            Peer peer = acquire(port);
+            boolean sent = false;
+            try {
+                int request = ++peer.request;
+                Wire.write(peer.out, request, Protocol.REBALANCE_STORE_TOKEN, filename, String.valueOf(file.length()),
+                        String.valueOf(checksum));
+                peer.out.flush();
+                if (!peer.frame.read(peer.in) || peer.frame.request() != request
+                        || !Protocol.ACK_TOKEN.equals(Wire.token(peer.frame.opcode()))) {
+                    throw new EOFException("Dstore " + port + " did not acknowledge");
+                }
+                transfer(file, peer.channel);
+                sent = true;
+                peer.out.flush();
+                if (!peer.frame.read(peer.in) || peer.frame.request() != request
+                        || !Protocol.ACK_TOKEN.equals(Wire.token(peer.frame.opcode()))) {
+                    throw new EOFException("Dstore " + port + " did not take " + filename + " intact");
+                }
+                release(peer);
+                System.out.println("Sent " + filename + " to Dstore " + port);
+                return;
+            } catch (IOException e) {
+                peer.close();
+                if (sent || !peer.used) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void transfer(Dstore.Span file, SocketChannel out) throws IOException {
+        if (bandwidth == null) {
+            file.send(0, file.length(), out);
+            return;
+        }
+        for (long sent = 0; sent < file.length(); ) {
+            long slice = Math.min(SLICE, file.length() - sent);
+            bandwidth.take(slice);
+            sent += file.send(sent, slice, out);
+        }
+    }
+
+    /**
+     * Admits rate bytes a second, with bursts of up to a tenth of a second's worth after a quiet spell.
+     */
+    static class TokenBucket {
+        private static final long BURST = 100_000_000L;
+
+        private final long rate;
+        // the time at which everything admitted so far has been paid for
+        private long paidUntil = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+        }
+
+        void take(long bytes) throws IOException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                paidUntil = Math.max(paidUntil, now - BURST) + bytes * 1_000_000_000L / rate;
+                wait = paidUntil - now;
+            }
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+}
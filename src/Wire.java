@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The binary framing a connection can switch to instead of text lines. A client that wants it sends the HELLO line
+ * as its first message; a server that speaks it answers with the same line, and from then on both sides send frames:
+ * <pre>
+ *     int length     bytes that follow
+ *     byte opcode    which Protocol token
+ *     int request    chosen by the client, echoed in the reply
+ *     int fields     how many fields follow
+ *     (int length, bytes) for each field
+ * </pre>
+ * Fields are UTF-8, numbers in decimal, so a frame carries the same words as the text line it replaces but needs no
+ * line splitting, and the file data that follows some messages starts exactly where the frame ends. A server that
+ * does not answer HELLO only speaks text.
+ */
+public class Wire {
+    public static final String HELLO = "HELLO BINARY 1";
+    private static final int MAX_FRAME = 64 << 20;
+
+    // opcode i stands for TOKENS[i]; new tokens go on the end so opcodes never change meaning
+    private static final String[] TOKENS = {
+            Protocol.LIST_TOKEN, Protocol.STORE_TOKEN, Protocol.LOAD_TOKEN, Protocol.LOAD_DATA_TOKEN,
+            Protocol.RELOAD_TOKEN, Protocol.REMOVE_TOKEN, Protocol.STORE_TO_TOKEN, Protocol.STORE_COMPLETE_TOKEN,
+            Protocol.LOAD_FROM_TOKEN, Protocol.REMOVE_COMPLETE_TOKEN, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN,
+            Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, Protocol.ERROR_LOAD_TOKEN,
+            Protocol.ACK_TOKEN, Protocol.REBALANCE_STORE_TOKEN, Protocol.STORE_CHAIN_TOKEN, Protocol.STORE_CHUNKED_TOKEN,
+            Protocol.STORE_CHUNKS_TO_TOKEN, Protocol.LOAD_CHUNKED_TOKEN, Protocol.LOAD_CHUNKS_FROM_TOKEN,
+            Protocol.LOAD_RANGE_TOKEN, Protocol.LOAD_DATA_RANGE_TOKEN, Protocol.ERROR_INVALID_RANGE_TOKEN,
+            Protocol.STORE_EC_TOKEN, Protocol.STORE_SHARDS_TO_TOKEN, Protocol.LOAD_EC_TOKEN,
+            Protocol.LOAD_SHARDS_FROM_TOKEN, Protocol.LIST_PAGE_TOKEN, Protocol.STORE_BATCH_TOKEN,
+            Protocol.STORE_BATCH_TO_TOKEN, Protocol.STORE_BATCH_COMPLETE_TOKEN, Protocol.LOAD_BATCH_TOKEN,
+            Protocol.LOAD_BATCH_FROM_TOKEN, Protocol.REMOVE_BATCH_TOKEN, Protocol.REMOVE_BATCH_COMPLETE_TOKEN,
+            Protocol.HEDGE_TOKEN, Protocol.STORE_COMPRESSED_TOKEN, Protocol.LOAD_COMPRESSED_TOKEN,
+            Protocol.LOAD_COMPRESSED_FROM_TOKEN, Protocol.STORE_DEDUP_TOKEN, Protocol.STORE_CONTENT_TO_TOKEN,
+            Protocol.LOAD_DEDUP_TOKEN, Protocol.LOAD_CONTENT_FROM_TOKEN, Protocol.ERROR_MALFORMED_TOKEN,
+    };
+    private static final Map<String, Byte> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TOKENS.length; i++) {
+            OPCODES.put(TOKENS[i], (byte) i);
+        }
+    }
+
+    public static byte opcode(String token) throws IOException {
+        Byte opcode = OPCODES.get(token);
+        if (opcode == null) {
+            throw new IOException("No opcode for " + token);
+        }
+        return opcode;
+    }
+
+    /**
+     * The Protocol token of an opcode, the same String constant every time, or null for an unknown opcode.
+     */
+    public static String token(byte opcode) {
+        return opcode >= 0 && opcode < TOKENS.length ? TOKENS[opcode] : null;
+    }
+
+    /**
+     * Writes one frame. The caller flushes.
+     */
+    public static void write(DataOutputStream out, byte opcode, int request, byte[]... fields) throws IOException {
+        int length = 1 + 4 + 4;
+        for (byte[] field : fields) {
+            length += 4 + field.length;
+        }
+        out.writeInt(length);
+        out.writeByte(opcode);
+        out.writeInt(request);
+        out.writeInt(fields.length);
+        for (byte[] field : fields) {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+    }
+
+    /**
+     * Writes the words of a text message, its token first, as one frame.
+     */
+    public static void write(DataOutputStream out, int request, String... words) throws IOException {
+        byte[][] fields = new byte[words.length - 1][];
+        for (int i = 1; i < words.length; i++) {
+            fields[i - 1] = words[i].getBytes(StandardCharsets.UTF_8);
+        }
+        write(out, opcode(words[0]), request, fields);
+    }
+
+    /**
+     * One frame read into a buffer that is reused for the next, so reading a frame allocates nothing unless it is
+     * larger than any before. Fields are read in place: numbers are parsed from the bytes and only the fields asked
+     * for as strings become Strings.
+     */
+    public static class Frame {
+        private byte[] buffer = new byte[512];
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private byte opcode;
+        private int request;
+        private int fields;
+
+        /**
+         * Reads the next frame. Returns false at a clean end of stream.
+         */
+        public boolean read(DataInputStream in) throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            if (length < 9 || length > MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            opcode = buffer[0];
+            request = readInt(1);
+            fields = readInt(5);
+            if (fields < 0 || fields > (length - 9) / 4) {
+                throw new IOException("Bad field count " + fields);
+            }
+            if (offsets.length < fields) {
+                offsets = new int[fields];
+                lengths = new int[fields];
+            }
+            int position = 9;
+            for (int i = 0; i < fields; i++) {
+                if (position + 4 > length) {
+                    throw new IOException("Frame ends inside field " + i);
+                }
+                lengths[i] = readInt(position);
+                offsets[i] = position + 4;
+                position += 4 + lengths[i];
+                if (lengths[i] < 0 || position > length) {
+                    throw new IOException("Frame ends inside field " + i);
+                }
+            }
+            return true;
+        }
+
+        private int readInt(int position) {
+            return ((buffer[position] & 0xff) << 24) | ((buffer[position + 1] & 0xff) << 16)
+                    | ((buffer[position + 2] & 0xff) << 8) | (buffer[position + 3] & 0xff);
+        }
+
+        public byte opcode() {
+            return opcode;
+        }
+
+        public int request() {
+            return request;
+        }
+
+        public int fields() {
+            return fields;
+        }
+
+        public String string(int field) {
+            return new String(buffer, offsets[field], lengths[field], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * A non-negative decimal field, or -1 if the field is not one.
+         */
+        public long number(int field) {
+            if (lengths[field] == 0 || lengths[field] > 18) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = offsets[field]; i < offsets[field] + lengths[field]; i++) {
+                if (buffer[i] < '0' || buffer[i] > '9') {
+                    return -1;
+                }
+                value = value * 10 + (buffer[i] - '0');
+            }
+            return value;
+        }
+
+        /**
+         * Whether a field can stand as one word of a text message: not empty, and without spaces or control characters,
+         * ASCII or C1, which would split it or end the line wherever it is passed on as text. Checked on the bytes, so
+         * a frame can be turned away without decoding it.
+         */
+        public boolean word(int field) {
+            int end = offsets[field] + lengths[field];
+            if (lengths[field] == 0) {
+                return false;
+            }
+            for (int i = offsets[field]; i < end; i++) {
+                int b = buffer[i] & 0xff;
+                if (b <= ' ' || b == 0x7f || (b == 0xc2 && i + 1 < end && (buffer[i + 1] & 0xff) < 0xa0)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The frame as the words of the equivalent text message, token first; an unknown opcode gives a null token.
+         */
+        public String[] words() {
+            String[] words = new String[fields + 1];
+            words[0] = token(opcode);
+            for (int i = 0; i < fields; i++) {
+                words[i + 1] = string(i);
+            }
+            return words;
+        }
+    }
+
+    /**
+     * A PrintWriter for code that answers in text lines, which sends each line as a frame instead. The words of a
+     * line, split at spaces, become the frame's token and fields, and the frame carries the current request id. The
+     * fields are encoded into the frame as they are printed, so a line is never held as a String to be split again;
+     * only its token is, to look up the opcode.
+     */
+    public static class FrameWriter extends PrintWriter {
+        private final DataOutputStream out;
+        private final StringBuilder token = new StringBuilder();
+        // the fields printed so far, each a length and its UTF-8 bytes
+        private byte[] fields = new byte[512];
+        private int length;
+        private int count;
+        // where the length of the field being printed goes, or -1 while the token is
+        private int field = -1;
+        private int request;
+
+        public FrameWriter(OutputStream out) {
+            super(Writer.nullWriter());
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+        }
+
+        public void request(int request) {
+            this.request = request;
+        }
+
+        @Override
+        public void print(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                int c = s.codePointAt(i);
+                i += Character.charCount(c) - 1;
+                if (c == ' ') {
+                    endField();
+                    field = length;
+                    for (int b = 0; b < 4; b++) {
+                        put(0);
+                    }
+                    count++;
+                } else if (field < 0) {
+                    token.appendCodePoint(c);
+                } else {
+                    encode(Character.isSurrogate((char) c) ? '?' : c);
+                }
+            }
+        }
+
+        private void encode(int c) {
+            if (c < 0x80) {
+                put(c);
+            } else if (c < 0x800) {
+                put(0xc0 | c >> 6);
+                put(0x80 | c & 0x3f);
+            } else if (c < 0x10000) {
+                put(0xe0 | c >> 12);
+                put(0x80 | c >> 6 & 0x3f);
+                put(0x80 | c & 0x3f);
+            } else {
+                put(0xf0 | c >> 18);
+                put(0x80 | c >> 12 & 0x3f);
+                put(0x80 | c >> 6 & 0x3f);
+                put(0x80 | c & 0x3f);
+            }
+        }
+
+        private void put(int b) {
+            if (length == fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            fields[length++] = (byte) b;
+        }
+
+        private void endField() {
+            if (field >= 0) {
+                int size = length - field - 4;
+                for (int i = 0; i < 4; i++) {
+                    fields[field + i] = (byte) (size >>> 24 - 8 * i);
+                }
+            }
+        }
+
+        @Override
+        public void println() {
+            try {
+                endField();
+                // as split(" ") would, leave off empty fields at the end
+                while (count > 0 && field == length - 4) {
+                    length -= 4;
+                    count--;
+                    field = lastField();
+                }
+                byte opcode = opcode(token.toString());
+                out.writeInt(1 + 4 + 4 + length);
+                out.writeByte(opcode);
+                out.writeInt(request);
+                out.writeInt(count);
+                out.write(fields, 0, length);
+                out.flush();
+            } catch (IOException e) {
+                setError();
+            } finally {
+                token.setLength(0);
+                length = 0;
+                count = 0;
+                field = -1;
+            }
+        }
+
+        /**
+         * Where the last of the fields printed so far starts, or -1 if there are none.
+         */
+        private int lastField() {
+            int last = -1;
+            for (int at = 0; at < length; at += 4 + readLength(at)) {
+                last = at;
+            }
+            return last;
+        }
+
+        private int readLength(int at) {
+            return ((fields[at] & 0xff) << 24) | ((fields[at + 1] & 0xff) << 16) | ((fields[at + 2] & 0xff) << 8) | (fields[at + 3] & 0xff);
+        }
+    }
+}